@@ -0,0 +1,44 @@
+package org.os.bench;
+import org.os.Commands;
+import org.openjdk.jmh.annotations.*;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CatBenchmark {
+
+    // 1 KB, 1 MB, 100 MB, 1 GB
+    @Param({"1024", "1048576", "104857600", "1073741824"})
+    public long fileSize;
+
+    private Path dir;
+    private Commands commands;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Fixtures.tempDir("cat");
+        Fixtures.logFile(dir, "app.log", fileSize);
+        commands = Fixtures.quietCommands();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public void catToConsole() {
+        commands.cat(new String[]{"cat", "app.log"}, dir);
+    }
+
+    @Benchmark
+    public void catToFile() {
+        commands.redirect("cat app.log > copy.log", dir);
+    }
+}
@@ -0,0 +1,92 @@
+package org.os.bench;
+import org.os.Commands;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Generates the files and directory trees the benchmarks run against.
+ */
+final class Fixtures {
+
+    // Files per directory in generated trees
+    static final int FANOUT = 1000;
+
+    private Fixtures() {
+    }
+
+    /** Commands instance whose output is discarded, so console I/O does not skew the numbers. */
+    static Commands quietCommands() {
+        return new Commands(null, new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    static Path tempDir(String prefix) throws IOException {
+        return Files.createTempDirectory("cli-bench-" + prefix);
+    }
+
+    /**
+     * Writes a log-like text file of roughly {@code size} bytes.
+     * Every 100th line contains "ERROR" and every 1000th also contains "timeout".
+     */
+    static Path logFile(Path dir, String name, long size) throws IOException {
+        Path file = dir.resolve(name);
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            long written = 0;
+            for (long line = 1; written < size; line++) {
+                String text;
+                if (line % 1000 == 0) {
+                    text = "2024-01-01T00:00:00Z ERROR request " + line + " failed: upstream timeout";
+                } else if (line % 100 == 0) {
+                    text = "2024-01-01T00:00:00Z ERROR request " + line + " failed: bad gateway";
+                } else {
+                    text = "2024-01-01T00:00:00Z INFO request " + line + " served in 12ms";
+                }
+                writer.write(text);
+                writer.newLine();
+                written += text.length() + 1;
+            }
+        }
+        return file;
+    }
+
+    /** Creates {@code entries} empty files spread over subdirectories of {@link #FANOUT} files each. */
+    static void tree(Path root, int entries) throws IOException {
+        Files.createDirectories(root);
+        for (int i = 0; i < entries; i++) {
+            Path dir = root.resolve("d" + (i / FANOUT));
+            if (i % FANOUT == 0) {
+                Files.createDirectories(dir);
+            }
+            Files.createFile(dir.resolve("f" + i));
+        }
+    }
+
+    /** Creates {@code entries} empty files directly inside {@code dir}. */
+    static void flat(Path dir, int entries) throws IOException {
+        Files.createDirectories(dir);
+        for (int i = 0; i < entries; i++) {
+            Files.createFile(dir.resolve("f" + i));
+        }
+    }
+
+    static void delete(Path root) throws IOException {
+        if (root == null || Files.notExists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+    }
+}
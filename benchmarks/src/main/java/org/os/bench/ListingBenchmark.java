@@ -0,0 +1,72 @@
+package org.os.bench;
+import org.os.Commands;
+import org.openjdk.jmh.annotations.*;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ls, ls -a, ls -l and ls -lS over a flat directory, ls -r over a tree, both with the given number of entries.
+ * Repeat listings come from the session cache, so the ls variants mostly measure sorting and formatting.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ListingBenchmark {
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int entries;
+
+    private Path root;
+    private Path flat;
+    private Path tree;
+    private Commands commands;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Fixtures.tempDir("ls");
+        flat = root.resolve("flat");
+        tree = root.resolve("tree");
+        Fixtures.flat(flat, entries);
+        Fixtures.tree(tree, entries);
+        commands = Fixtures.quietCommands();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(root);
+    }
+
+    @Benchmark
+    public void ls() {
+        commands.ls(flat);
+    }
+
+    @Benchmark
+    public void lsa() {
+        commands.lsa(flat);
+    }
+
+    @Benchmark
+    public void lsLong() {
+        commands.ls(new String[]{"ls", "-l"}, flat);
+    }
+
+    @Benchmark
+    public void lsLongBySize() {
+        commands.ls(new String[]{"ls", "-lS"}, flat);
+    }
+
+    @Benchmark
+    public void lsrOrdered() {
+        commands.lsr(new String[]{"ls-r"}, tree);
+    }
+
+    @Benchmark
+    public void lsrUnordered() {
+        commands.lsr(new String[]{"ls-r", "--unordered"}, tree);
+    }
+}
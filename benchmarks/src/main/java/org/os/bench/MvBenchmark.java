@@ -0,0 +1,56 @@
+package org.os.bench;
+import org.os.Commands;
+import org.openjdk.jmh.annotations.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renames a file back and forth and moves it in and out of a directory that holds the given number of entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MvBenchmark {
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int entries;
+
+    private Path root;
+    private Commands commands;
+    private boolean flipped;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Fixtures.tempDir("mv");
+        Fixtures.flat(root.resolve("crowded"), entries);
+        Files.writeString(root.resolve("a.txt"), "payload");
+        commands = Fixtures.quietCommands();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(root);
+    }
+
+    @Benchmark
+    public void rename() {
+        if (flipped) {
+            commands.mv(new String[]{"mv", "b.txt", "a.txt"}, root);
+        } else {
+            commands.mv(new String[]{"mv", "a.txt", "b.txt"}, root);
+        }
+        flipped = !flipped;
+    }
+
+    @Benchmark
+    public void moveThroughCrowdedDirectory() {
+        String name = flipped ? "b.txt" : "a.txt";
+        commands.mv(new String[]{"mv", name, "crowded"}, root);
+        commands.mv(new String[]{"mv", "crowded/" + name, name}, root);
+    }
+}
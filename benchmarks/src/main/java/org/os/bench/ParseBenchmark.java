@@ -0,0 +1,59 @@
+package org.os.bench;
+import org.os.CommandLine;
+import org.openjdk.jmh.annotations.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning one input line into the words handed to a command: the split-based parsing the
+ * interpreter used to do against the reusable single-pass tokenizer. Run with -prof gc to compare allocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({
+            "ls-r --depth 2",
+            "grep -n -i timeout logs/app.log",
+            "cat a.log b.log | grep ERROR | grep -c timeout",
+            "echo build finished at noon >> logs/build.log"
+    })
+    public String input;
+
+    private final CommandLine line = new CommandLine();
+
+    /** What Main did before: trim, look for operators, then split with a regex, once per stage. */
+    @Benchmark
+    public String[] splitBaseline() {
+        String trimmed = input.trim();
+        if (trimmed.contains("|")) {
+            String[] stages = trimmed.split("\\|");
+            String[] last = null;
+            for (String stage : stages) {
+                last = stage.trim().split(" +");
+            }
+            return last;
+        }
+        if (trimmed.contains(">")) {
+            String[] parts = trimmed.contains(">>") ? trimmed.split(">>") : trimmed.split(">");
+            return parts[0].trim().split(" +");
+        }
+        return trimmed.split(" ");
+    }
+
+    /** Parsing alone, which reuses the tokenizer's buffers. */
+    @Benchmark
+    public boolean tokenize() {
+        return line.parse(input);
+    }
+
+    /** Parsing plus the strings of the last stage, as dispatching a command needs. */
+    @Benchmark
+    public String[] tokenizeAndMaterialize() {
+        line.parse(input);
+        return line.command(line.stages() - 1);
+    }
+}
@@ -0,0 +1,39 @@
+package org.os.bench;
+import org.os.Commands;
+import org.openjdk.jmh.annotations.*;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RedirectBenchmark {
+
+    private Path dir;
+    private Commands commands;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Fixtures.tempDir("redirect");
+        commands = Fixtures.quietCommands();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public void echoOverwrite() {
+        commands.redirect("echo benchmark line > out.txt", dir);
+    }
+
+    @Benchmark
+    public void echoAppend() {
+        commands.redirect("echo benchmark line >> append.txt", dir);
+    }
+}
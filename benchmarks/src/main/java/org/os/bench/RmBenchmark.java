@@ -0,0 +1,48 @@
+package org.os.bench;
+import org.os.Commands;
+import org.openjdk.jmh.annotations.*;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes a freshly generated tree per invocation; only the deletion is timed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RmBenchmark {
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int entries;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private Path root;
+    private Commands commands;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        root = Fixtures.tempDir("rm");
+        commands = Fixtures.quietCommands();
+    }
+
+    @Setup(Level.Invocation)
+    public void createTree() throws IOException {
+        Fixtures.tree(root.resolve("victim"), entries);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(root);
+    }
+
+    @Benchmark
+    public void rm() {
+        commands.rm(parallel ? new String[]{"rm", "-p", "victim"} : new String[]{"rm", "victim"}, root);
+    }
+}
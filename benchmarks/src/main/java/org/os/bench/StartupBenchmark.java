@@ -0,0 +1,80 @@
+package org.os.bench;
+import org.os.Main;
+import org.openjdk.jmh.annotations.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold start: launching a fresh JVM that runs one command line with -c and exits, as automation does.
+ * Runs target/cli.jar when it exists (mvn -Pappcds package, run from the repository root) and the benchmark
+ * jar otherwise; with cds=true the launch maps the class-data archive target/cli.jsa built next to it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StartupBenchmark {
+
+    @Param({"pwd", "mkdir a b c", "ls -l"})
+    public String line;
+
+    @Param({"false", "true"})
+    public boolean cds;
+
+    private Path root;
+    private List<String> launch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        root = Fixtures.tempDir("startup");
+        Path jar = Paths.get("target", "cli.jar").toAbsolutePath();
+        Path archive = Paths.get("target", "cli.jsa").toAbsolutePath();
+        launch = new ArrayList<>();
+        launch.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (cds) {
+            if (!Files.exists(jar) || !Files.exists(archive)) {
+                throw new IllegalStateException("No class-data archive; run mvn -Pappcds package in the repository root first");
+            }
+            launch.add("-XX:SharedArchiveFile=" + archive);
+        }
+        launch.add("-cp");
+        launch.add(Files.exists(jar) ? jar.toString()
+                : Paths.get(Main.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString());
+        launch.add("org.os.Main");
+        launch.add("-c");
+        launch.add(line);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(root);
+    }
+
+    @TearDown(Level.Invocation)
+    public void clean() throws IOException {
+        // mkdir must find the directory empty again
+        Fixtures.delete(root);
+        Files.createDirectories(root);
+    }
+
+    @Benchmark
+    public int launch() throws Exception {
+        Process process = new ProcessBuilder(launch)
+                .directory(root.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        int status = process.waitFor();
+        if (status != 0) {
+            throw new IllegalStateException("cli exited with " + status + ": " + launch);
+        }
+        return status;
+    }
+}
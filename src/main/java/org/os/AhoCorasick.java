@@ -0,0 +1,129 @@
+package org.os;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Aho-Corasick automaton over UTF-8 bytes, compiled to a full DFA so scanning is one table lookup per byte.
+ * Bytes that never occur in a pattern share one input class, which keeps the transition table
+ * at (states x distinct pattern bytes) instead of (states x 256).
+ */
+public final class AhoCorasick implements LineMatcher {
+
+    private final int[] byteClass = new int[256];
+    private final int classes;
+    private final int[] delta;
+    private final boolean[] accepting;
+
+    public AhoCorasick(List<String> patterns, boolean ignoreCase) {
+        List<byte[]> encoded = new ArrayList<>(patterns.size());
+        for (String pattern : patterns) {
+            String text = ignoreCase ? pattern.toLowerCase(Locale.ROOT) : pattern;
+            encoded.add(text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Class 0 is every byte that appears in no pattern
+        int next = 1;
+        for (byte[] pattern : encoded) {
+            for (byte b : pattern) {
+                if (byteClass[b & 0xFF] == 0) {
+                    byteClass[b & 0xFF] = next++;
+                }
+            }
+        }
+        if (ignoreCase) {
+            for (int b = 'A'; b <= 'Z'; b++) {
+                byteClass[b] = byteClass[b + ('a' - 'A')];
+            }
+        }
+        classes = next;
+
+        // Build the trie with -1 meaning "no edge"
+        int capacity = 1;
+        for (byte[] pattern : encoded) {
+            capacity += pattern.length;
+        }
+        int[] trie = new int[capacity * classes];
+        Arrays.fill(trie, -1);
+        boolean[] terminal = new boolean[capacity];
+        int states = 1;
+        for (byte[] pattern : encoded) {
+            int state = 0;
+            for (byte b : pattern) {
+                int slot = state * classes + byteClass[b & 0xFF];
+                if (trie[slot] < 0) {
+                    trie[slot] = states++;
+                }
+                state = trie[slot];
+            }
+            terminal[state] = true;
+        }
+
+        // Breadth-first: fill missing edges from the failure state, and inherit its accepting flag
+        delta = Arrays.copyOf(trie, states * classes);
+        accepting = Arrays.copyOf(terminal, states);
+        int[] failure = new int[states];
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < classes; c++) {
+            int child = delta[c];
+            if (child < 0) {
+                delta[c] = 0;
+            } else {
+                failure[child] = 0;
+                queue.add(child);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            accepting[state] |= accepting[failure[state]];
+            for (int c = 0; c < classes; c++) {
+                int slot = state * classes + c;
+                int child = delta[slot];
+                if (child < 0) {
+                    delta[slot] = delta[failure[state] * classes + c];
+                } else {
+                    failure[child] = delta[failure[state] * classes + c];
+                    queue.add(child);
+                }
+            }
+        }
+    }
+
+    @Override
+    public int find(ByteBuffer buf, int from, int to) {
+        if (accepting[0]) {
+            // An empty pattern matches every line
+            return from < to ? from : -1;
+        }
+        int state = 0;
+        for (int i = from; i < to; i++) {
+            // Newlines never occur in patterns, so they lead back to the root and no match can span lines
+            state = delta[state * classes + byteClass[buf.get(i) & 0xFF]];
+            if (accepting[state]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean matches(String line) {
+        if (accepting[0]) {
+            return true;
+        }
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        int state = 0;
+        for (byte b : bytes) {
+            state = delta[state * classes + byteClass[b & 0xFF]];
+            if (accepting[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
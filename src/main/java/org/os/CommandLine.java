@@ -0,0 +1,259 @@
+package org.os;
+import java.util.Arrays;
+
+/**
+ * One input line split into words in a single pass over its characters.
+ * Words are separated by runs of blanks. Inside '...' every character is literal; inside "..." blanks and
+ * operators are literal and \" and \\ are escapes; elsewhere a backslash makes the next character literal.
+ * Outside quotes, | separates pipeline stages, > or >> followed by a word names the file the last stage
+ * writes to, and a final & runs the line in the background.
+ *
+ * <p>An instance is meant to be reused for every line of a session or script: the characters of all words
+ * go into one char array and the words are recorded as offsets into it, so once the buffers have grown to
+ * the longest line seen, parsing allocates nothing. Strings are only created when a stage is handed to a
+ * command through {@link #command(int)}.
+ */
+public final class CommandLine {
+
+    public enum Redirect { NONE, TRUNCATE, APPEND }
+
+    // The line being parsed, copied out of its String so the scan reads a plain array
+    private char[] source = new char[256];
+    // Characters of every word, back to back
+    private char[] chars = new char[256];
+    private int length;
+    // Word i is chars[wordStart[i], wordEnd[i])
+    private int[] wordStart = new int[16];
+    private int[] wordEnd = new int[16];
+    private int words;
+    // Index of the first word of each stage
+    private int[] stageStart = new int[4];
+    private int stages;
+    private int targetStart;
+    private int targetEnd;
+    private Redirect redirect;
+    private boolean background;
+    private String error;
+
+    /**
+     * Parses a line, replacing whatever was parsed before.
+     *
+     * @return false on a syntax error, described by {@link #error()}
+     */
+    public boolean parse(CharSequence line) {
+        length = 0;
+        words = 0;
+        stages = 1;
+        stageStart[0] = 0;
+        redirect = Redirect.NONE;
+        background = false;
+        error = null;
+        boolean expectTarget = false;
+        boolean haveTarget = false;
+
+        int n = line.length();
+        if (n > source.length) {
+            // Words never hold more characters than the line, so chars grows with it and appends need no check
+            source = new char[Math.max(n, source.length * 2)];
+            chars = new char[source.length];
+        }
+        if (line instanceof String text) {
+            text.getChars(0, n, source, 0);
+        } else {
+            for (int k = 0; k < n; k++) {
+                source[k] = line.charAt(k);
+            }
+        }
+        char[] in = source;
+        int i = 0;
+        while (true) {
+            while (i < n && isBlank(in[i])) {
+                i++;
+            }
+            if (i >= n) {
+                break;
+            }
+            char c = in[i];
+            if (background) {
+                return fail("'&' must end the line");
+            }
+            if (c == '|' || c == '>' || c == '&') {
+                if (expectTarget) {
+                    return fail("missing file name after '>'");
+                }
+                if (wordsInStage() == 0) {
+                    return fail(c == '|' ? "empty pipeline stage" : "missing command before '" + c + "'");
+                }
+                if (c == '|') {
+                    if (redirect != Redirect.NONE) {
+                        return fail("only the last command of a pipeline can be redirected");
+                    }
+                    if (stages == stageStart.length) {
+                        stageStart = Arrays.copyOf(stageStart, stages * 2);
+                    }
+                    stageStart[stages++] = words;
+                    i++;
+                } else if (c == '>') {
+                    if (redirect != Redirect.NONE) {
+                        return fail("more than one redirect");
+                    }
+                    boolean append = i + 1 < n && in[i + 1] == '>';
+                    redirect = append ? Redirect.APPEND : Redirect.TRUNCATE;
+                    expectTarget = true;
+                    i += append ? 2 : 1;
+                } else {
+                    background = true;
+                    i++;
+                }
+                continue;
+            }
+            if (haveTarget) {
+                return fail("unexpected text after the file name of '>'");
+            }
+
+            int start = length;
+            while (i < n) {
+                c = in[i];
+                if (isBlank(c) || c == '|' || c == '>' || c == '&') {
+                    break;
+                }
+                if (c == '\'') {
+                    int close = i + 1;
+                    while (close < n && in[close] != '\'') {
+                        close++;
+                    }
+                    if (close == n) {
+                        return fail("unterminated quote");
+                    }
+                    for (int j = i + 1; j < close; j++) {
+                        append(in[j]);
+                    }
+                    i = close + 1;
+                } else if (c == '"') {
+                    i++;
+                    while (i < n && in[i] != '"') {
+                        char d = in[i];
+                        if (d == '\\' && i + 1 < n && (in[i + 1] == '"' || in[i + 1] == '\\')) {
+                            d = in[++i];
+                        }
+                        append(d);
+                        i++;
+                    }
+                    if (i == n) {
+                        return fail("unterminated quote");
+                    }
+                    i++;
+                } else if (c == '\\' && i + 1 < n) {
+                    append(in[i + 1]);
+                    i += 2;
+                } else {
+                    append(c);
+                    i++;
+                }
+            }
+            if (expectTarget) {
+                targetStart = start;
+                targetEnd = length;
+                expectTarget = false;
+                haveTarget = true;
+            } else {
+                addWord(start, length);
+            }
+        }
+        if (expectTarget) {
+            return fail("missing file name after '>'");
+        }
+        if (stages > 1 && wordsInStage() == 0) {
+            return fail("empty pipeline stage");
+        }
+        return true;
+    }
+
+    /** What made the last parse fail, e.g. "Syntax error: unterminated quote". */
+    public String error() {
+        return error;
+    }
+
+    /** True for a blank line. */
+    public boolean isEmpty() {
+        return words == 0 && !background;
+    }
+
+    public int stages() {
+        return stages;
+    }
+
+    /** The words of one stage as a new array: the command name, then its arguments. */
+    public String[] command(int stage) {
+        int from = stageStart[stage];
+        int to = stage + 1 < stages ? stageStart[stage + 1] : words;
+        String[] command = new String[to - from];
+        for (int w = from; w < to; w++) {
+            command[w - from] = new String(chars, wordStart[w], wordEnd[w] - wordStart[w]);
+        }
+        return command;
+    }
+
+    /** Every stage, in order. */
+    public String[][] commands() {
+        String[][] commands = new String[stages][];
+        for (int s = 0; s < stages; s++) {
+            commands[s] = command(s);
+        }
+        return commands;
+    }
+
+    /** True when the first word of a stage is name, compared in place without creating a String. */
+    public boolean isNamed(int stage, String name) {
+        int from = stageStart[stage];
+        if (from >= words || wordEnd[from] - wordStart[from] != name.length()) {
+            return false;
+        }
+        for (int k = 0; k < name.length(); k++) {
+            if (chars[wordStart[from] + k] != name.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Redirect redirect() {
+        return redirect;
+    }
+
+    /** The file named after > or >>, or null without a redirect. */
+    public String target() {
+        return redirect == Redirect.NONE ? null : new String(chars, targetStart, targetEnd - targetStart);
+    }
+
+    public boolean background() {
+        return background;
+    }
+
+    private int wordsInStage() {
+        return words - stageStart[stages - 1];
+    }
+
+    private boolean fail(String message) {
+        error = "Syntax error: " + message;
+        return false;
+    }
+
+    private void append(char c) {
+        chars[length++] = c;
+    }
+
+    private void addWord(int start, int end) {
+        if (words == wordStart.length) {
+            wordStart = Arrays.copyOf(wordStart, words * 2);
+            wordEnd = Arrays.copyOf(wordEnd, words * 2);
+        }
+        wordStart[words] = start;
+        wordEnd[words] = end;
+        words++;
+    }
+
+    private static boolean isBlank(char c) {
+        return c == ' ' || c == '\t';
+    }
+}
@@ -0,0 +1,102 @@
+package org.os;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Every built-in command by name, filled in once when the interpreter starts. Dispatching a command is one
+ * hash lookup on its name; the entry says how to run it and whether it is timed and waits for queued
+ * redirects like an ordinary command.
+ *
+ * <p>Only names are registered up front. The handler of a command is asked of the binder the first time the
+ * command runs, so starting the interpreter does not link a lambda for every command it knows.
+ */
+final class CommandRegistry {
+
+    /** A command that never ends the session. */
+    @FunctionalInterface
+    interface Action {
+        void run(Commands commands, String[] command, Path directory) throws Exception;
+    }
+
+    /** A command that may end the session, by returning false. */
+    @FunctionalInterface
+    interface Handler {
+        boolean run(Commands commands, String[] command, Path directory) throws Exception;
+    }
+
+    /** Creates the handler of a registered command. */
+    @FunctionalInterface
+    interface Binder {
+        Handler bind(String name);
+    }
+
+    static final class Entry {
+        final String name;
+        // False for wrappers such as time, which time the command they run instead
+        final boolean timed;
+        private final Binder binder;
+        private volatile Handler handler;
+
+        Entry(String name, boolean timed, Binder binder) {
+            this.name = name;
+            this.timed = timed;
+            this.binder = binder;
+        }
+
+        Handler handler() {
+            Handler bound = handler;
+            if (bound == null) {
+                // Binding twice from two threads is harmless; both get an equivalent handler
+                bound = binder.bind(name);
+                if (bound == null) {
+                    throw new IllegalStateException("No handler for command: " + name);
+                }
+                handler = bound;
+            }
+            return bound;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Binder binder;
+
+    CommandRegistry(Binder binder) {
+        this.binder = binder;
+    }
+
+    /** An ordinary, timed command. */
+    CommandRegistry command(String name) {
+        return add(new Entry(name, true, binder));
+    }
+
+    /** A command whose handler may end the session; timed says whether it is timed like an ordinary command. */
+    CommandRegistry control(String name, boolean timed) {
+        return add(new Entry(name, timed, binder));
+    }
+
+    /** Adapts an action to a handler that always keeps the session going. */
+    static Handler action(Action action) {
+        return (commands, command, directory) -> {
+            action.run(commands, command, directory);
+            return true;
+        };
+    }
+
+    private CommandRegistry add(Entry entry) {
+        if (entries.putIfAbsent(entry.name, entry) != null) {
+            throw new IllegalStateException("Command registered twice: " + entry.name);
+        }
+        return this;
+    }
+
+    /** The entry for a command name, or null for an unknown command. */
+    Entry lookup(String name) {
+        return entries.get(name);
+    }
+
+    Set<String> names() {
+        return entries.keySet();
+    }
+}
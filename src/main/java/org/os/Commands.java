@@ -1,33 +1,319 @@
 package org.os;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Stream;
 
 public class Commands {
 
+    // Block size used when copying file contents to a stream
+    static final int COPY_BUFFER_SIZE = 256 * 1024;
+    // Upper bound on moves in flight; each may be a whole tree being copied to another volume
+    static final int MAX_PARALLEL_MOVES = 8;
+
+    // Piped input, or null for the console
+    private final InputStream in;
+    // Never null: the console's Output unless another stream was given
+    private final Output out;
+    // Session-wide state, shared by every instance derived through withStreams
+    private final Session session;
+    private final Metrics metrics;
+    private final DirectoryCache directoryCache;
+    // True once the background job these commands run in is killed; never for the prompt
+    private final BooleanSupplier killed;
+
+    public Commands() {
+        this(null, null);
+    }
+
+    public Commands(InputStream in, PrintStream out) {
+        this(in, out, new Session(), () -> false);
+    }
+
+    private Commands(InputStream in, PrintStream out, Session session, BooleanSupplier killed) {
+        this.in = in;
+        this.out = out == null ? Output.console() : Output.to(out);
+        this.session = session;
+        this.metrics = session.metrics;
+        this.directoryCache = session.directoryCache;
+        this.killed = killed;
+    }
+
+    /**
+     * Returns a Commands instance that reads piped input from {@code in} and writes to {@code out}
+     * (the console when null), used to run one stage of a pipeline.
+     */
+    public Commands withStreams(InputStream in, PrintStream out) {
+        return new Commands(in, out, session, killed);
+    }
+
+    /**
+     * True once the job running these commands has been killed. Long-running commands poll it, and hand it to
+     * their walkers and pools; whoever sees true stops short and prints no summary for the partial work.
+     */
+    boolean killed() {
+        return killed.getAsBoolean();
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    /** Queues echo redirects on a background writer from now on, instead of writing them before returning. */
+    public void enableWriterPool() {
+        if (session.writers == null) {
+            session.writers = new WriterPool(metrics);
+        }
+    }
+
+    /** Waits for queued redirects to reach their files; called before any command that may read them. */
+    public void flushRedirects() {
+        WriterPool writers = session.writers;
+        if (writers != null) {
+            writers.drain().forEach(error -> out().println("redirect: " + error));
+        }
+    }
+
+    /** Prints queued redirects that failed since the last check, without waiting; called before the prompt. */
+    public void reportRedirectErrors() {
+        WriterPool writers = session.writers;
+        if (writers != null) {
+            writers.failures().forEach(error -> out().println("redirect: " + error));
+        }
+    }
+
+    /** Writes queued redirects and forces every redirect target to disk, then stops the writer. */
+    public void closeWriters() {
+        WriterPool writers = session.writers;
+        if (writers != null) {
+            session.writers = null;
+            writers.close();
+        }
+    }
+
+    public void sync() {
+        WriterPool writers = session.writers;
+        if (writers != null) {
+            writers.sync().forEach(error -> out().println("sync: " + error));
+        }
+    }
+
+    private Output out() {
+        return out;
+    }
+
+    /** Where this instance writes; callers flush it at the end of a line, stage or job. */
+    Output output() {
+        return out;
+    }
+
+    /**
+     * Starts {@code line} as a background job and prints its number. The body runs on the job's own
+     * virtual thread with a Commands instance that writes to the job's output (memory, or {@code output}
+     * when it is not null) and reads no console input, so a job never competes with the prompt for the keyboard.
+     */
+    void startJob(String line, Path directory, Path output, boolean append, Consumer<Commands> body) {
+        OutputStream target = null;
+        if (output != null) {
+            try {
+                target = openOutput(output, append);
+            } catch (IOException e) {
+                out().println("Error writing to file: " + e.getMessage());
+                return;
+            }
+        }
+        Jobs.Job job = session.jobs().start(line, directory, target, started -> {
+            Commands jobCommands = new Commands(InputStream.nullInputStream(), started.out, session, started::stopIfKilled);
+            try {
+                body.accept(jobCommands);
+            } finally {
+                jobCommands.out.flush();
+            }
+        });
+        out().println("[" + job.id + "] " + line);
+    }
+
+    /** Buffered output to file, for everything a whole command or pipeline prints. */
+    Output openOutput(Path file, boolean append) throws IOException {
+        flushRedirects(); // an echo still queued for the same file lands before it is truncated or appended to
+        OutputStream stream = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+        directoryCache.invalidate(file.toAbsolutePath().getParent());
+        return Output.to(stream);
+    }
+
+    public void jobs() {
+        for (Jobs.Job job : session.jobs().list()) {
+            out().println(job.describe());
+        }
+    }
+
+    /** Prints the jobs that ended since the last prompt, each once. */
+    public void reportFinishedJobs() {
+        for (Jobs.Job job : session.jobs().newlyFinished()) {
+            out().println(job.describe());
+        }
+    }
+
+    /** fg [id]: waits for a job (the most recent by default) and prints its output. */
+    public void fg(String[] command) {
+        List<Jobs.Job> all = session.jobs().list();
+        Jobs.Job job = command.length > 1 ? findJob("fg", command[1]) : all.isEmpty() ? null : all.get(all.size() - 1);
+        if (job == null) {
+            if (command.length == 1) {
+                out().println("fg: No current job");
+            }
+            return;
+        }
+        if (!Jobs.await(job)) {
+            out().println("fg: Interrupted");
+            return;
+        }
+        out().print(job.output());
+        if (job.dropped() > 0) {
+            out().println("fg: Output truncated, " + humanSize(job.dropped()) + " not kept; use <cmd> > <file> & to keep all of it");
+        }
+        out().flush();
+        session.jobs().remove(job);
+    }
+
+    /** wait [id...]: waits for the given jobs, or all of them, and prints each one's status and output. */
+    public void waitJobs(String[] command) {
+        List<Jobs.Job> targets = new ArrayList<>();
+        if (command.length == 1) {
+            targets.addAll(session.jobs().list());
+        }
+        for (int i = 1; i < command.length; i++) {
+            Jobs.Job job = findJob("wait", command[i]);
+            if (job != null) {
+                targets.add(job);
+            }
+        }
+        for (Jobs.Job job : targets) {
+            if (!Jobs.await(job)) {
+                out().println("wait: Interrupted");
+                return;
+            }
+            out().println(job.describe());
+            out().print(job.output());
+            session.jobs().remove(job);
+        }
+        out().flush();
+    }
+
+    /** kill id: interrupts a running job. */
+    public void kill(String[] command) {
+        if (command.length < 2) {
+            out().println("Usage: kill <job>");
+            return;
+        }
+        for (int i = 1; i < command.length; i++) {
+            Jobs.Job job = findJob("kill", command[i]);
+            if (job != null && !session.jobs().kill(job)) {
+                out().println("kill: Job " + job.id + " has already finished");
+            }
+        }
+    }
+
+    // Accepts "3" or "%3", as a shell does
+    private Jobs.Job findJob(String cmd, String id) {
+        Jobs.Job job = null;
+        try {
+            job = session.jobs().get(Integer.parseInt(id.startsWith("%") ? id.substring(1) : id));
+        } catch (NumberFormatException e) {
+            // reported below like any unknown job
+        }
+        if (job == null) {
+            out().println(cmd + ": No such job: " + id);
+        }
+        return job;
+    }
+
     public void help() {
-        System.out.println("Available Commands:");
-        System.out.println("pwd                  : Display current directory");
-        System.out.println("cd <dir>             : Change to the specified directory");
-        System.out.println("ls                   : List files in the current directory");
-        System.out.println("ls -a                : List all files, including hidden files, in the current directory");
-        System.out.println("ls -r                : Recursively list all files and directories");
-        System.out.println("mkdir <dir>          : Create a new directory with the specified name");
-        System.out.println("rmdir <dir>          : Remove an empty directory with the specified name");
-        System.out.println("touch <file>         : Create a new file with the specified name");
-        System.out.println("mv <src> <dest>      : Move or rename a file or directory from <src> to <dest>");
-        System.out.println("rm <file>            : Remove a file with the specified name");
-        System.out.println("cat <file>           : Display the content of the specified file");
-        System.out.println("echo <text> > <file> : Redirects the output of 'echo' to a file (overwrites)");
-        System.out.println("echo <text> >> <file>: Redirects the output of 'echo' to a file (appends)");
-        System.out.println("exit                 : Terminate the command line interpreter");
-        System.out.println("help                 : Display this help message");
+        out().println("Available Commands:");
+        out().println("pwd                  : Display current directory");
+        out().println("cd <dir>             : Change to the specified directory");
+        out().println("ls [-alStr] [dir]    : List files by name; -a hidden too, -l details, -S by size, -t by time, -r reversed");
+        out().println("ls-r                 : Recursively list all files and directories");
+        out().println("  [--depth N] [-u|--unordered] [-c|--count] : limit depth, list in parallel without ordering, print totals");
+        out().println("mkdir <dir>          : Create a new directory with the specified name");
+        out().println("rmdir <dir>          : Remove an empty directory with the specified name");
+        out().println("touch <file>         : Create a new file with the specified name");
+        out().println("mv <src> <dest>      : Move or rename a file or directory from <src> to <dest>");
+        out().println("mv <src>... <dir>    : Move several files, directories or globs into <dir> at the same time");
+        out().println("cp [-r] <src>... <dest>: Copy files, or directory trees with -r, preserving times and permissions");
+        out().println("  [--update]         : skip files whose copy already has the same size and modification time");
+        out().println("rm <file>            : Remove a file with the specified name");
+        out().println("  [-p|--parallel] [--dry-run] : delete a directory tree on a worker pool, or only report what would be freed");
+        out().println("cat <file>...        : Display the content of the specified files");
+        out().println("  [--range offset:length] : only output the given byte range of each file");
+        out().println("  [--lines first:last] : only output the given lines, found through a cached line offset index");
+        out().println("head [-n N] <file>   : Print the first N lines of a file (default 10)");
+        out().println("tail [-n N] <file>   : Print the last N lines of a file (default 10)");
+        out().println("  [-f]               : then keep printing lines as they are appended, across rotation; Enter stops");
+        out().println("cat <file>... > <file>: Copy files into another file (>> appends)");
+        out().println("grep [-c] [-n] [-i] [-E] <pattern> <file>: Print lines containing <pattern>");
+        out().println("                       (-c: count only, -n: line numbers, -i: ignore case, -E: regular expression)");
+        out().println("grep [options] -f <patterns> <file>: Print lines matching any pattern listed in <patterns>, one per line");
+        out().println("                       (the file may be omitted when reading from a pipe)");
+        out().println("grep -r [options] <pattern> [dir]: Search every text file under [dir] in parallel");
+        out().println("  [--include glob] [--exclude glob] [--group] : filter files by name, or print one heading per file");
+        out().println("echo <text>          : Print <text>");
+        out().println("<cmd> | <cmd> ...    : Pipe the output of each command into the next one");
+        out().println("  [> file | >> file] : send the output of the last command to a file");
+        out().println("'...', \"...\", \\x     : Quote or escape spaces, |, > and & to keep them inside one argument");
+        out().println("echo <text> > <file> : Redirects the output of 'echo' to a file (overwrites)");
+        out().println("echo <text> >> <file>: Redirects the output of 'echo' to a file (appends)");
+        out().println("du [dir]             : Show the size of every directory under [dir], summed in parallel");
+        out().println("  [-s] [--depth N] [--top K] [--fresh] : only the total, limit depth, list the K largest, ignore cached summaries");
+        out().println("dupes [dir]          : List files under [dir] with identical content, largest waste first");
+        out().println("snapshot save <d> <f>: Write a manifest of every path under <d> with size and mtime (--hash adds SHA-256)");
+        out().println("snapshot diff <a> <b>: Show paths added, removed or changed between two manifests, or a manifest and a directory");
+        out().println("index build <dir>    : Record every path under <dir> in an on-disk filename index");
+        out().println("index update [dir]   : Refresh indexes, re-reading only directories that changed");
+        out().println("locate <pattern>     : Print indexed paths containing <pattern>, or matching it as a glob");
+        out().println("sync                 : Write pending redirect output and force it to disk");
+        out().println("<cmd> &              : Run a command, pipeline or redirect in the background on a virtual thread");
+        out().println("                       (its output, up to 16 MB, is kept until fg or wait, unless redirected: <cmd> > <file> &)");
+        out().println("jobs                 : List background jobs with their state and running time");
+        out().println("fg [job]             : Wait for a job (the latest by default) and print its output");
+        out().println("wait [job...]        : Wait for the given jobs, or all of them, and print their output");
+        out().println("kill <job>           : Stop a background job at its next directory, file or chunk");
+        out().println("exit                 : Terminate the command line interpreter");
+        out().println("help                 : Display this help message");
+        out().println("stats [--json|reset] : Show per-command timings, bytes and files touched this session");
+        out().println("cache [stats|clear]  : Show hit rates of the directory listing and grep pattern caches, or empty the caches and line indexes");
+        out().println("time <command>       : Run a command and print its time, I/O and allocation breakdown");
+        out().println("command --limit <n>  : Print only the first n lines of a command's output");
+        out().println("exit --stats <file>  : Exit and write the session statistics as JSON to <file>");
+        out().println("Run a script without the prompt: java -jar cli.jar -f <script>");
+        out().println("Run one command line and exit: java -jar cli.jar -c \"mkdir a b c\"");
     }
 
 
@@ -36,78 +322,243 @@ public class Commands {
 
     public void ls(Path currentDirectory) {
         // Basic `ls` - lists only visible files and directories in the current directory
-        try (Stream<Path> paths = Files.list(currentDirectory)) {
-            paths.filter(path -> !path.getFileName().toString().startsWith("."))
-                    .forEach(path -> {
-                        if (Files.isDirectory(path)) {
-                            System.out.println(path.getFileName() + "/");
-                        } else {
-                            System.out.println(path.getFileName());
-                        }
-                    });
-        } catch (IOException e) {
-            System.out.println("ls: Error reading directory");
-        }
+        list(currentDirectory, false, false, DirectoryCache.Listing.BY_NAME, false, "ls");
     }
 
     public void lsa(Path currentDirectory) {
         // `ls -a` - lists all files, including hidden files
-        try (Stream<Path> paths = Files.list(currentDirectory)) {
-            paths.forEach(path -> {
-                if (Files.isDirectory(path)) {
-                    System.out.println(path.getFileName() + "/");
-                } else {
-                    System.out.println(path.getFileName());
+        list(currentDirectory, true, false, DirectoryCache.Listing.BY_NAME, false, "ls -a");
+    }
+
+    /**
+     * ls [-a] [-l] [-S|-t] [-r] [dir]: entries by name, or largest (-S) or newest (-t) first; -l adds the type,
+     * size in bytes and modification time. All of it comes from the one cached listing, so -l costs no extra stat.
+     */
+    public void ls(String[] command, Path currentDirectory) {
+        boolean all = false;
+        boolean details = false;
+        boolean reverse = false;
+        int order = DirectoryCache.Listing.BY_NAME;
+        String dir = null;
+        for (int i = 1; i < command.length; i++) {
+            String arg = command[i];
+            if (!arg.startsWith("-") || arg.length() == 1) {
+                dir = arg;
+                continue;
+            }
+            for (int c = 1; c < arg.length(); c++) {
+                switch (arg.charAt(c)) {
+                    case 'a':
+                        all = true;
+                        break;
+                    case 'l':
+                        details = true;
+                        break;
+                    case 'S':
+                        order = DirectoryCache.Listing.BY_SIZE;
+                        break;
+                    case 't':
+                        order = DirectoryCache.Listing.BY_TIME;
+                        break;
+                    case 'r':
+                        reverse = true;
+                        break;
+                    default:
+                        out().println("ls: Unknown option -" + arg.charAt(c));
+                        return;
                 }
-            });
+            }
+        }
+        list(dir == null ? currentDirectory : currentDirectory.resolve(dir), all, details, order, reverse, "ls");
+    }
+
+    // Characters of output collected before they are handed to the output in one piece
+    private static final int LIST_BATCH = 64 * 1024;
+
+    private void list(Path directory, boolean showHidden, boolean details, int order, boolean reverse, String name) {
+        DirectoryCache.Listing listing;
+        try {
+            // Served from the session cache when the directory has not changed since it was last listed
+            listing = directoryCache.list(directory);
         } catch (IOException e) {
-            System.out.println("ls -a: Error reading directory");
+            out().println(name + ": Error reading directory");
+            return;
+        }
+        metrics.filesTouched(listing.size());
+        int[] entries = listing.order(order, reverse);
+
+        int sizeWidth = 0;
+        if (details) {
+            long largest = 0;
+            for (long size : listing.sizes) {
+                largest = Math.max(largest, size);
+            }
+            sizeWidth = digits(largest);
+        }
+        ZoneRules zone = ZoneId.systemDefault().getRules();
+        String newline = System.lineSeparator();
+        PrintStream printer = out();
+        StringBuilder lines = new StringBuilder(LIST_BATCH + 256);
+        for (int i : entries) {
+            if (!showHidden && listing.isHidden(i)) {
+                continue;
+            }
+            if (details) {
+                appendDetails(lines, listing, i, sizeWidth, zone);
+            }
+            lines.append(listing.names[i]);
+            if (listing.isDirectory(i)) {
+                lines.append('/');
+            }
+            lines.append(newline);
+            if (lines.length() >= LIST_BATCH) {
+                printer.print(lines.toString());
+                lines.setLength(0);
+            }
+        }
+        printer.print(lines.toString());
+    }
+
+    // "d        4096 2024-05-01 12:30 " with the size right-aligned to width
+    private static void appendDetails(StringBuilder line, DirectoryCache.Listing listing, int i, int width, ZoneRules zone) {
+        line.append(listing.isSymlink(i) ? 'l' : listing.isDirectory(i) ? 'd' : '-').append(' ');
+        long size = listing.sizes[i];
+        for (int pad = width - digits(size); pad > 0; pad--) {
+            line.append(' ');
+        }
+        line.append(size).append(' ');
+        long millis = listing.modified[i];
+        LocalDateTime time = LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000), 0,
+                zone.getOffset(Instant.ofEpochMilli(millis)));
+        line.append(time.getYear()).append('-');
+        appendTwoDigits(line, time.getMonthValue()).append('-');
+        appendTwoDigits(line, time.getDayOfMonth()).append(' ');
+        appendTwoDigits(line, time.getHour()).append(':');
+        appendTwoDigits(line, time.getMinute()).append(' ');
+    }
+
+    private static StringBuilder appendTwoDigits(StringBuilder line, int value) {
+        return line.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
         }
+        return digits;
     }
 
     public void lsr(Path currentDirectory) {
+        lsr(new String[]{"ls-r"}, currentDirectory);
+    }
+
+    public void lsr(String[] command, Path currentDirectory) {
         // `ls -r` - recursively lists all files and directories
-        try {
-            Files.walk(currentDirectory).forEach(path -> {
-                if (Files.isDirectory(path)) {
-                    System.out.println(path + "/");
+        int maxDepth = Integer.MAX_VALUE;
+        boolean unordered = false;
+        boolean summary = false;
+        for (int i = 1; i < command.length; i++) {
+            switch (command[i]) {
+                case "-u":
+                case "--unordered":
+                    unordered = true;
+                    break;
+                case "-c":
+                case "--count":
+                    summary = true;
+                    break;
+                case "--depth":
+                    if (i + 1 >= command.length) {
+                        out().println("ls -r: --depth requires a number");
+                        return;
+                    }
+                    try {
+                        maxDepth = Integer.parseInt(command[++i]);
+                    } catch (NumberFormatException e) {
+                        out().println("ls -r: Invalid depth: " + command[i]);
+                        return;
+                    }
+                    break;
+                default:
+                    out().println("ls -r: Unknown option " + command[i]);
+                    return;
+            }
+        }
+
+        PrintStream printer = out();
+        LongAdder directories = new LongAdder();
+        LongAdder files = new LongAdder();
+        TreeWalker.Visitor visitor = new TreeWalker.Visitor() {
+            @Override
+            public void visit(Path path, BasicFileAttributes attrs, int depth) {
+                // The attributes come from the walk itself, so no extra stat per entry
+                if (attrs.isDirectory()) {
+                    directories.increment();
+                    printer.println(path + "/");
                 } else {
-                    System.out.println("  " + path);
+                    files.increment();
+                    printer.println("  " + path);
                 }
-            });
+            }
+
+            @Override
+            public void failed(Path dir, IOException e) {
+                printer.println("ls -r: Cannot read directory " + dir);
+            }
+        };
+
+        try {
+            TreeWalker walker = new TreeWalker(maxDepth).stopWhen(this::killed);
+            if (unordered) {
+                walker.walkParallel(currentDirectory, visitor);
+            } else {
+                walker.walkOrdered(currentDirectory, visitor);
+            }
         } catch (IOException e) {
-            System.out.println("ls -r: Error reading directory");
+            out().println("ls -r: Error reading directory");
+            return;
+        }
+        metrics.filesTouched(directories.sum() + files.sum());
+        if (summary && !killed()) {
+            out().println(directories.sum() + " directories, " + files.sum() + " files");
         }
     }
 
     public void mkdir(String[] command, Path currentDirectory) {
         // Check if at least one directory name argument is provided
         if (command.length < 2) {
-            System.out.println("mkdir: Missing directory argument (name)");
+            out().println("mkdir: Missing directory argument (name)");
             return; // Exit if no directory names are given
         }
 
+        // The parent is checked once, from the cache when it has been listed before
+        boolean parentExists = directoryCache.isDirectory(currentDirectory);
+
         // Loop over each directory name given as an argument
         for (int i = 1; i < command.length; i++) {
             String dirName = command[i];
             Path dirPath = currentDirectory.resolve(dirName);
 
             // Check if the parent directory exists
-            if (!Files.exists(currentDirectory)) {
-                System.out.println("mkdir: Parent directory does not exist for '" + dirName + "'");
+            if (!parentExists) {
+                out().println("mkdir: Parent directory does not exist for '" + dirName + "'");
                 continue; // Skip to the next directory name if the parent directory doesn't exist
             }
 
             try {
                 // Attempt to create the directory
                 Files.createDirectory(dirPath);
-                System.out.println("Directory created: " + dirPath);
+                directoryCache.invalidate(dirPath.getParent());
+                metrics.filesTouched(1);
+                out().println("Directory created: " + dirPath);
             } catch (FileAlreadyExistsException e) {
                 // Handle case where the directory already exists
-                System.out.println("mkdir: Failed to create directory '" + dirName + "': A directory with the same name already exists.");
+                out().println("mkdir: Failed to create directory '" + dirName + "': A directory with the same name already exists.");
             } catch (IOException e) {
                 // Handle any other I/O errors during directory creation
-                System.out.println("mkdir: An error occurred while creating the directory '" + dirName + "'.");
+                out().println("mkdir: An error occurred while creating the directory '" + dirName + "'.");
             }
         }
     }
@@ -116,7 +567,7 @@ public class Commands {
     public void rmdir(String[] command, Path currentDirectory) {
         // Check if the directory argument is provided
         if (command.length < 2) {
-            System.out.println("rmdir: Missing directory argument (name)");
+            out().println("rmdir: Missing directory argument (name)");
             return; // Exit if no directory name is given
         }
 
@@ -125,61 +576,428 @@ public class Commands {
 
         // Check if the directory exists
         if (Files.notExists(dirToDelete)) {
-            System.out.println("rmdir: Directory does not exist: '" + command[1] + "'");
+            out().println("rmdir: Directory does not exist: '" + command[1] + "'");
             return; // Exit if the directory doesn't exist
         }
 
         // Check if the path is actually a directory
         if (!Files.isDirectory(dirToDelete)) {
-            System.out.println("rmdir: Not a directory: '" + command[1] + "'");
+            out().println("rmdir: Not a directory: '" + command[1] + "'");
             return; // Exit if the path is not a directory
         }
 
         try {
             // Attempt to delete the directory (only if it's empty)
             Files.delete(dirToDelete);
-            System.out.println("Directory deleted: " + dirToDelete);
+            directoryCache.invalidate(dirToDelete);
+            directoryCache.invalidate(dirToDelete.getParent());
+            metrics.filesTouched(1);
+            out().println("Directory deleted: " + dirToDelete);
         } catch (DirectoryNotEmptyException e) {
             // Handle case where the directory is not empty
-            System.out.println("rmdir: Directory is not empty: " + command[1]);
+            out().println("rmdir: Directory is not empty: " + command[1]);
         } catch (IOException e) {
             // Handle any other I/O errors during deletion
-            System.out.println("rmdir: Error deleting directory: " + command[1]);
+            out().println("rmdir: Error deleting directory: " + command[1]);
         }
     }
 
     public void cat(String[] command, Path currentDirectory) {
-        if (command.length < 2) {
-            System.out.println("cat: Missing file argument");
+        if (command.length < 2 && in != null) {
+            // Inside a pipeline: copy the piped input through, passing it on whenever upstream pauses
+            try {
+                byte[] chunk = new byte[COPY_BUFFER_SIZE];
+                int read;
+                while ((read = in.read(chunk)) >= 0) {
+                    out().write(chunk, 0, read);
+                    if (in.available() == 0) {
+                        out().flush();
+                    }
+                }
+            } catch (IOException e) {
+                out().println("cat: Failed to read input");
+            }
             return;
         }
-        Path filePath = currentDirectory.resolve(command[1]);
+        catFiles(command, currentDirectory, null);
+    }
+
+    // Copies the requested files, or a --range or --lines of each, to the console or straight into a file channel
+    private void catFiles(String[] command, Path currentDirectory, FileChannel target) {
+        long offset = 0;
+        long length = -1; // -1 reads to the end of the file
+        long firstLine = 0; // 0 means no --lines
+        long lastLine = -1;
+        List<String> files = new ArrayList<>();
+        for (int i = 1; i < command.length; i++) {
+            if (!command[i].equals("--range") && !command[i].equals("--lines")) {
+                files.add(command[i]);
+                continue;
+            }
+            boolean lines = command[i].equals("--lines");
+            if (i + 1 >= command.length) {
+                out().println(lines ? "cat: --lines requires first:last" : "cat: --range requires offset:length");
+                return;
+            }
+            String[] range = command[++i].split(":", -1);
+            long first;
+            long second;
+            try {
+                first = Long.parseLong(range[0]);
+                second = range.length > 1 && !range[1].isEmpty() ? Long.parseLong(range[1]) : -1;
+            } catch (NumberFormatException e) {
+                first = -1;
+                second = -1;
+            }
+            boolean valid = range.length <= 2 && (range.length < 2 || range[1].isEmpty() || second >= 0);
+            if (lines) {
+                if (first < 1 || !valid || (second >= 0 && second < first)) {
+                    out().println("cat: Invalid lines " + command[i] + ", expected first:last (1-based)");
+                    return;
+                }
+                firstLine = first;
+                lastLine = second;
+            } else {
+                if (first < 0 || !valid) {
+                    out().println("cat: Invalid range " + command[i] + ", expected offset:length");
+                    return;
+                }
+                offset = first;
+                length = second;
+            }
+        }
+        if (files.isEmpty()) {
+            out().println("cat: Missing file argument");
+            return;
+        }
+
+        byte[] buffer = target == null ? new byte[COPY_BUFFER_SIZE] : null;
+        for (String name : files) {
+            Path path = currentDirectory.resolve(name);
+            try (FileChannel source = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = source.size();
+                long start;
+                long end;
+                if (firstLine > 0) {
+                    // Jump straight to the lines through the file's offset index, building it on first use
+                    LineIndex index = lineIndex(path, true);
+                    long last = lastLine < 0 ? index.lines() : Math.min(lastLine, index.lines());
+                    start = firstLine > index.lines() ? size : index.start(firstLine);
+                    end = firstLine > last ? start : index.end(last);
+                } else {
+                    start = Math.min(offset, size);
+                    end = length < 0 ? size : Math.min(size, start + length);
+                }
+                copyRange(source, start, end, target, buffer);
+                metrics.filesTouched(1);
+            } catch (IOException e) {
+                out().println("cat: Failed to read file " + name);
+            }
+        }
+        out().flush();
+    }
+
+    // Copies [start, end) of source into target, or to the console when target is null
+    private void copyRange(FileChannel source, long start, long end, FileChannel target, byte[] buffer) throws IOException {
+        if (target != null) {
+            // File to file: let the kernel move the bytes without copying them through the heap
+            long position = start;
+            while (position < end) {
+                long moved = source.transferTo(position, end - position, target);
+                if (moved <= 0) {
+                    break;
+                }
+                position += moved;
+                metrics.bytesRead(moved);
+                metrics.bytesWritten(moved);
+            }
+            return;
+        }
+        // Raw bytes in large blocks: no charset decoding and no String per line
+        ByteBuffer block = ByteBuffer.wrap(buffer);
+        long position = start;
+        while (position < end) {
+            block.clear().limit((int) Math.min(buffer.length, end - position));
+            int read = source.read(block, position);
+            if (read < 0) {
+                break;
+            }
+            out().write(buffer, 0, read);
+            position += read;
+            metrics.bytesRead(read);
+        }
+    }
+
+    /**
+     * The line offset index of a file, from this session's cache or its sidecar; when there is no fresh one,
+     * builds it if asked to and returns null otherwise.
+     */
+    private LineIndex lineIndex(Path file, boolean build) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        BasicFileAttributes attrs = Files.readAttributes(key, BasicFileAttributes.class);
+        synchronized (session.lineIndexes) {
+            LineIndex cached = session.lineIndexes.get(key);
+            if (cached != null && cached.isFresh(attrs)) {
+                return cached;
+            }
+        }
+        LineIndex index = LineIndex.open(key, indexHome(), build);
+        if (index != null) {
+            synchronized (session.lineIndexes) {
+                session.lineIndexes.put(key, index);
+            }
+        }
+        return index;
+    }
+
+    public void head(String[] command, Path currentDirectory) {
+        printLines("head", command, currentDirectory, false);
+    }
+
+    public void tail(String[] command, Path currentDirectory) {
+        boolean follow = Arrays.asList(command).contains("-f");
+        String[] options = follow ? Arrays.stream(command).filter(arg -> !arg.equals("-f")).toArray(String[]::new) : command;
+        long position = printLines("tail", options, currentDirectory, true);
+        if (!follow || position < 0) {
+            return;
+        }
+        String fileName = options[options.length - 1];
+        FileFollower follower = new FileFollower(currentDirectory.resolve(fileName), out(), () -> stopRequested() || killed());
+        try {
+            follower.follow(position);
+        } catch (IOException e) {
+            out().println("tail: Failed to follow " + fileName + ": " + e.getMessage());
+        }
+        // A kill can end the follower through the interrupt before it polls the flag; seeing the flag here
+        // is what reports the job as terminated
+        killed();
+        metrics.bytesRead(follower.bytesRead);
+    }
+
+    // Enter on the console ends a long-running command such as tail -f; piped stages are stopped by their pipe closing
+    private boolean stopRequested() {
+        if (in != null) {
+            return false;
+        }
         try {
-            Files.lines(filePath).forEach(System.out::println);
+            if (System.in.available() == 0) {
+                return false;
+            }
+            int c;
+            do {
+                c = System.in.read();
+            } while (c != '\n' && c >= 0 && System.in.available() > 0);
+            return true;
         } catch (IOException e) {
-            System.out.println("cat: Failed to read file " + command[1]);
+            return false;
         }
     }
 
+    /**
+     * head and tail: -n N lines (default 10) from the start or the end of a file.
+     *
+     * @return the file size when the lines were printed, or -1 on error
+     */
+    private long printLines(String name, String[] command, Path currentDirectory, boolean fromEnd) {
+        long count = 10;
+        String fileName = null;
+        for (int i = 1; i < command.length; i++) {
+            if (command[i].equals("-n") && i + 1 < command.length) {
+                try {
+                    count = Long.parseLong(command[++i]);
+                } catch (NumberFormatException e) {
+                    count = -1;
+                }
+                if (count < 0) {
+                    out().println(name + ": Invalid line count: " + command[i]);
+                    return -1;
+                }
+            } else if (fileName == null && !command[i].startsWith("-")) {
+                fileName = command[i];
+            } else {
+                out().println("Usage: " + name + " [-n lines] <file>");
+                return -1;
+            }
+        }
+        if (fileName == null) {
+            out().println("Usage: " + name + " [-n lines] <file>");
+            return -1;
+        }
+
+        Path path = currentDirectory.resolve(fileName);
+        try (FileChannel source = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = source.size();
+            long start = 0;
+            long end = size;
+            // An existing index answers in O(1); without one, only the lines asked for are scanned
+            LineIndex index = lineIndex(path, false);
+            if (index != null) {
+                long lines = index.lines();
+                if (fromEnd) {
+                    start = count >= lines ? 0 : index.start(lines - count + 1);
+                } else {
+                    end = count >= lines ? size : index.start(count + 1);
+                }
+            } else if (fromEnd) {
+                start = lineStartFromEnd(source, size, count);
+            } else {
+                end = lineEndFromStart(source, size, count);
+            }
+            copyRange(source, start, end, null, new byte[(int) Math.min(COPY_BUFFER_SIZE, Math.max(end - start, 1))]);
+            metrics.filesTouched(1);
+            out().flush();
+            return size;
+        } catch (IOException e) {
+            // A kill interrupts the read, which closes the channel; that is not a read error
+            if (!killed()) {
+                out().println(name + ": Failed to read file " + fileName);
+            }
+            return -1;
+        }
+    }
+
+    // Offset just past the count-th newline, reading forward in blocks
+    private static long lineEndFromStart(FileChannel source, long size, long count) throws IOException {
+        if (count == 0) {
+            return 0;
+        }
+        ByteBuffer block = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        long seen = 0;
+        while (position < size) {
+            block.clear();
+            int read = source.read(block, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (block.get(i) == '\n' && ++seen == count) {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    // Offset where the last count lines begin, reading backward in blocks; a final newline ends the last line
+    private static long lineStartFromEnd(FileChannel source, long size, long count) throws IOException {
+        if (count == 0) {
+            return size;
+        }
+        ByteBuffer block = ByteBuffer.allocate(64 * 1024);
+        long end = size;
+        long seen = 0;
+        while (end > 0) {
+            long blockStart = Math.max(0, end - block.capacity());
+            block.clear().limit((int) (end - blockStart));
+            source.read(block, blockStart);
+            for (int i = (int) (end - blockStart) - 1; i >= 0; i--) {
+                long offset = blockStart + i;
+                if (block.get(i) == '\n' && offset != size - 1 && ++seen == count) {
+                    return offset + 1;
+                }
+            }
+            end = blockStart;
+        }
+        return 0;
+    }
+
     public void touch(String fileName, Path currentDirectory) {
         Path filePath = currentDirectory.resolve(fileName);
         try {
             if (Files.exists(filePath)) {
-                System.out.println("File already exists: " + fileName);
+                out().println("File already exists: " + fileName);
             } else {
                 Files.createFile(filePath);
-                System.out.println("File created: " + fileName);
+                directoryCache.invalidate(filePath.getParent());
+                metrics.filesTouched(1);
+                out().println("File created: " + fileName);
             }
         } catch (IOException e) {
-            System.out.println("An error occurred while creating the file: " + fileName);
+            out().println("An error occurred while creating the file: " + fileName);
             e.printStackTrace();
         }
     }
 
+    public void rm(String[] command, Path currentDirectory) {
+        // -p deletes directory trees on a worker pool, --dry-run only reports what would be removed
+        boolean parallel = false;
+        boolean dryRun = false;
+        String target = null;
+        for (int i = 1; i < command.length; i++) {
+            switch (command[i]) {
+                case "-p":
+                case "--parallel":
+                    parallel = true;
+                    break;
+                case "--dry-run":
+                    dryRun = true;
+                    break;
+                default:
+                    if (target != null || command[i].startsWith("-")) {
+                        out().println("Usage: rm [-p|--parallel] [--dry-run] <filename>");
+                        return;
+                    }
+                    target = command[i];
+            }
+        }
+        if (target == null) {
+            out().println("Usage: rm [-p|--parallel] [--dry-run] <filename>");
+            return;
+        }
+        if (!parallel && !dryRun) {
+            rm(target, currentDirectory);
+            return;
+        }
+
+        Path path = currentDirectory.resolve(target);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            out().println("File or directory does not exist: " + target);
+            return;
+        }
+        if (!attrs.isDirectory()) {
+            if (dryRun) {
+                out().println("Would remove 1 file, freeing " + humanSize(attrs.size()));
+            } else {
+                rm(target, currentDirectory);
+            }
+            return;
+        }
+
+        PrintStream printer = out();
+        String phase = dryRun ? "Scanning: " : "Deleting: ";
+        TreeDeleter deleter = new TreeDeleter(dryRun, line -> {
+            printer.println(phase + line);
+            printer.flush(); // progress is worth showing while the command still runs
+        }).stopWhen(this::killed);
+        long elapsed = deleter.delete(path);
+        if (!dryRun) {
+            directoryCache.invalidate(path);
+            directoryCache.invalidate(path.toAbsolutePath().getParent());
+        }
+        metrics.filesTouched(deleter.files.sum() + deleter.directories.sum());
+        if (killed()) {
+            return;
+        }
+        if (dryRun) {
+            out().println("Would remove " + deleter.files.sum() + " files and " + deleter.directories.sum()
+                    + " directories, freeing " + humanSize(deleter.bytes.sum()));
+        } else {
+            out().println("Deleted " + deleter.report(elapsed) + " in " + elapsed / 1_000_000 + " ms");
+        }
+        if (deleter.failures.sum() > 0) {
+            out().println("rm: " + deleter.failures.sum() + " entries could not be removed");
+        }
+    }
+
     public void rm(String fileName, Path currentDirectory) {
         Path path = currentDirectory.resolve(fileName);
         if (Files.notExists(path)) {
-            System.out.println("File or directory does not exist: " + fileName);
+            out().println("File or directory does not exist: " + fileName);
             return;
         }
 
@@ -189,19 +1007,25 @@ public class Commands {
                     @Override
                     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
                         Files.delete(file);
+                        metrics.filesTouched(1);
                         return FileVisitResult.CONTINUE;
                     }
 
                     @Override
                     public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
                         Files.delete(dir);
+                        directoryCache.invalidate(dir);
+                        metrics.filesTouched(1);
                         return FileVisitResult.CONTINUE;
                     }
                 });
-                System.out.println("Directory and its contents deleted successfully: " + fileName);
+                directoryCache.invalidate(path.toAbsolutePath().getParent());
+                out().println("Directory and its contents deleted successfully: " + fileName);
             } else {
                 Files.delete(path);
-                System.out.println("File deleted successfully: " + fileName);
+                directoryCache.invalidate(path.toAbsolutePath().getParent());
+                metrics.filesTouched(1);
+                out().println("File deleted successfully: " + fileName);
             }
         } catch (IOException e) {
             System.err.println("Failed to delete: " + fileName + " - " + e.getMessage());
@@ -209,51 +1033,81 @@ public class Commands {
     }
 
     public void redirect(String input) {
-        String[] parts;
-        boolean append = input.contains(">>");
+        redirect(input, Paths.get("").toAbsolutePath());
+    }
 
-        if (append) {
-            parts = input.split(">>");
-        } else {
-            parts = input.split(">");
+    public void redirect(String input, Path currentDirectory) {
+        CommandLine line = new CommandLine();
+        if (!line.parse(input) || line.redirect() == CommandLine.Redirect.NONE || line.stages() != 1) {
+            out().println("Invalid command format: " + input);
+            return;
         }
+        redirect(line.command(0), line.target(), line.redirect() == CommandLine.Redirect.APPEND, currentDirectory);
+    }
+
+    /** Writes the output of an echo or cat command to fileName, replacing or appending to it. */
+    public void redirect(String[] command, String fileName, boolean append, Path currentDirectory) {
+        Path filePath = currentDirectory.resolve(fileName);
 
-        if (parts.length < 2) {
-            System.out.println("Invalid command format: " + input);
+        if (command[0].equals("cat")) {
+            // cat reads files, which may be targets of queued echo redirects
+            flushRedirects();
+            StandardOpenOption mode = append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING;
+            try (FileChannel target = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode)) {
+                catFiles(command, currentDirectory, target);
+                directoryCache.invalidate(filePath.toAbsolutePath().getParent());
+                out().println("Output written to file: " + fileName);
+            } catch (IOException e) {
+                out().println("Error writing to file: " + e.getMessage());
+            }
+            return;
+        }
+        if (!command[0].equals("echo")) {
+            out().println("Unknown command: " + String.join(" ", command));
             return;
         }
 
-        String command = parts[0].trim();
-        String fileName = parts[1].trim();
-        Path filePath = Paths.get(fileName);
+        String message = String.join(" ", Arrays.asList(command).subList(1, command.length));
+        WriterPool writers = session.writers;
+        if (writers != null) {
+            byte[] line = (message + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+            try {
+                writers.write(filePath, line, !append);
+            } catch (IOException e) {
+                out().println("Error writing to file: " + e.getMessage());
+                return;
+            }
+            directoryCache.invalidate(filePath.toAbsolutePath().getParent());
+            // Counted, or reported as failed, once the writer has committed it
+            out().println("Message queued for file: " + fileName);
+            return;
+        }
 
         try (PrintWriter writer = new PrintWriter(new FileWriter(filePath.toFile(), append))) {
-            if (command.startsWith("echo")) {
-                String message = command.substring(5).trim();
-                writer.println(message);
-                System.out.println("Message written to file: " + fileName);
-            } else {
-                System.out.println("Unknown command: " + command);
-            }
+            writer.println(message);
+            directoryCache.invalidate(filePath.toAbsolutePath().getParent());
+            metrics.bytesWritten(message.getBytes(StandardCharsets.UTF_8).length + 1);
+            metrics.filesTouched(1);
+            out().println("Message written to file: " + fileName);
         } catch (IOException e) {
-            System.out.println("Error writing to file: " + e.getMessage());
+            out().println("Error writing to file: " + e.getMessage());
         }
     }
 
     public void pwd(Path currentDirectory) {
-        System.out.println(currentDirectory);
+        out().println(currentDirectory);
     }
 
     public Path cd(String[] command, Path currentDirectory) {
         if (command.length < 2) {
-            System.out.println("cd: Missing directory argument");
+            out().println("cd: Missing directory argument");
             return currentDirectory;
         }
         Path newPath = currentDirectory.resolve(command[1]).normalize();
-        if (Files.isDirectory(newPath)) {
+        if (directoryCache.isDirectory(newPath)) {
             return newPath;
         } else {
-            System.out.println("cd: No such directory: " + command[1]);
+            out().println("cd: No such directory: " + command[1]);
             return currentDirectory;
         }
     }
@@ -262,49 +1116,787 @@ public class Commands {
     public void mv(String[] command, Path currentDirectory) {
         // Check if both source and destination arguments are provided
         if (command.length < 3) {
-            System.out.println("mv: Missing source or destination argument");
+            out().println("mv: Missing source or destination argument");
             return;
         }
 
-        // Resolve source and destination paths relative to the current directory
-        Path sourcePath = currentDirectory.resolve(command[1]);
-        Path destinationPath = currentDirectory.resolve(command[2]);
-
-        // Check if the source file exists
-        if (!Files.exists(sourcePath)) {
-            System.out.println("mv: Source file or directory does not exist: " + command[1]);
+        // Every argument but the last is a source; globs are expanded against their directory
+        List<Path> sources = new ArrayList<>();
+        for (int i = 1; i < command.length - 1; i++) {
+            try {
+                List<Path> matched = expandGlob(command[i], currentDirectory);
+                if (matched.isEmpty()) {
+                    out().println("mv: Source file or directory does not exist: " + command[i]);
+                }
+                sources.addAll(matched);
+            } catch (IOException | IllegalArgumentException e) {
+                out().println("mv: Cannot expand " + command[i]);
+            }
+        }
+        if (sources.isEmpty()) {
+            return;
+        }
+        Path destinationPath = currentDirectory.resolve(command[command.length - 1]);
+        boolean intoDirectory = Files.isDirectory(destinationPath);
+        if (sources.size() > 1 && !intoDirectory) {
+            out().println("mv: Target is not a directory: " + command[command.length - 1]);
             return;
         }
 
-        // If destination is a directory, move the source into the destination directory
-        if (Files.isDirectory(destinationPath)) {
-            destinationPath = destinationPath.resolve(sourcePath.getFileName());
+        // Independent moves run at the same time; a rename is instant but a cross-volume copy is not
+        PrintStream printer = out();
+        List<ForkJoinTask<Long>> moves = new ArrayList<>();
+        for (Path sourcePath : sources) {
+            // If destination is a directory, move the source into the destination directory
+            Path target = intoDirectory ? destinationPath.resolve(sourcePath.getFileName()) : destinationPath;
+            moves.add(ForkJoinTask.adapt(() -> move(sourcePath, target, printer)));
+        }
+        Workers.run(Math.min(sources.size(), MAX_PARALLEL_MOVES), moves);
+        long files = 0;
+        long copied = 0;
+        for (ForkJoinTask<Long> move : moves) {
+            long bytes = move.join();
+            if (bytes >= 0) {
+                files++;
+                copied += bytes;
+            }
         }
+        metrics.filesTouched(files);
+        metrics.bytesWritten(copied);
+    }
 
+    /**
+     * Renames source to target, or copies then deletes it when they are on different filesystems.
+     *
+     * @return bytes copied (0 for a rename), or -1 if the move failed
+     */
+    private long move(Path sourcePath, Path target, PrintStream printer) {
+        if (killed()) {
+            return -1;
+        }
         try {
-            // Attempt to move the file or directory
-            Files.move(sourcePath, destinationPath, StandardCopyOption.REPLACE_EXISTING);
-            System.out.println("Moved " + sourcePath.getFileName() + " to " + destinationPath);
+            Files.move(sourcePath, target, StandardCopyOption.ATOMIC_MOVE);
+            invalidateParents(sourcePath, target);
+            printer.println("Moved " + sourcePath.getFileName() + " to " + target);
+            return 0;
+        } catch (AtomicMoveNotSupportedException e) {
+            // Different filesystems: fall through to copying
         } catch (IOException e) {
-            System.out.println("mv: Failed to move " + command[1] + " to " + command[2]);
+            try {
+                // e.g. the platform cannot atomically replace an existing target
+                Files.move(sourcePath, target, StandardCopyOption.REPLACE_EXISTING);
+                invalidateParents(sourcePath, target);
+                printer.println("Moved " + sourcePath.getFileName() + " to " + target);
+                return 0;
+            } catch (IOException again) {
+                printer.println("mv: Failed to move " + sourcePath + " to " + target);
+                return -1;
+            }
+        }
+
+        String name = sourcePath.getFileName().toString();
+        FileCopier copier = new FileCopier(line -> {
+            printer.println("Copying " + name + ": " + line);
+            printer.flush(); // progress is worth showing while the command still runs
+        }).stopWhen(this::killed);
+        try {
+            long elapsed = copier.copy(sourcePath, target);
+            if (killed()) {
+                return -1; // the copy was cut short, so the source is still the only complete one
+            }
+            if (copier.failures.sum() > 0) {
+                // Keep the source: it is the only complete copy
+                printer.println("mv: Failed to copy " + sourcePath + " to " + target + ": " + copier.firstFailure());
+                return -1;
+            }
+            TreeDeleter deleter = new TreeDeleter(false, line -> {});
+            if (Files.isDirectory(sourcePath, LinkOption.NOFOLLOW_LINKS)) {
+                deleter.delete(sourcePath);
+            } else {
+                Files.delete(sourcePath);
+            }
+            invalidateParents(sourcePath, target);
+            if (deleter.failures.sum() > 0) {
+                printer.println("mv: Copied " + sourcePath + " but " + deleter.failures.sum() + " entries could not be removed");
+            }
+            printer.println("Moved " + name + " to " + target + " by copying " + copier.report(elapsed));
+            return copier.bytes.sum();
+        } catch (IOException e) {
+            printer.println("mv: Failed to move " + sourcePath + " to " + target + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    public void cp(String[] command, Path currentDirectory) {
+        // -r copies directories, --update skips files whose target has the same size and mtime
+        boolean recursive = false;
+        boolean update = false;
+        List<String> arguments = new ArrayList<>();
+        for (int i = 1; i < command.length; i++) {
+            if (command[i].equals("-r") || command[i].equals("-R")) {
+                recursive = true;
+            } else if (command[i].equals("--update") || command[i].equals("-u")) {
+                update = true;
+            } else if (command[i].startsWith("-")) {
+                out().println("cp: Unknown option " + command[i]);
+                return;
+            } else {
+                arguments.add(command[i]);
+            }
+        }
+        if (arguments.size() < 2) {
+            out().println("Usage: cp [-r] [--update] <src>... <dest>");
+            return;
+        }
+
+        String destination = arguments.remove(arguments.size() - 1);
+        Path destinationPath = currentDirectory.resolve(destination);
+        List<Path> sources = new ArrayList<>();
+        for (String argument : arguments) {
+            try {
+                List<Path> matched = expandGlob(argument, currentDirectory);
+                if (matched.isEmpty()) {
+                    out().println("cp: No such file or directory: " + argument);
+                }
+                sources.addAll(matched);
+            } catch (IOException | IllegalArgumentException e) {
+                out().println("cp: Cannot expand " + argument);
+            }
+        }
+        boolean intoDirectory = Files.isDirectory(destinationPath);
+        if (sources.size() > 1 && !intoDirectory) {
+            out().println("cp: Target is not a directory: " + destination);
+            return;
+        }
+
+        List<Path> from = new ArrayList<>();
+        List<Path> to = new ArrayList<>();
+        List<BasicFileAttributes> attributes = new ArrayList<>();
+        for (Path source : sources) {
+            Path target = intoDirectory ? destinationPath.resolve(source.getFileName()) : destinationPath;
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(source, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                out().println("cp: Cannot read " + source);
+                continue;
+            }
+            if (attrs.isDirectory() && !recursive) {
+                out().println("cp: -r not specified; omitting directory " + source.getFileName());
+                continue;
+            }
+            Path normalizedSource = source.toAbsolutePath().normalize();
+            Path normalizedTarget = target.toAbsolutePath().normalize();
+            if (normalizedTarget.equals(normalizedSource) || (attrs.isDirectory() && normalizedTarget.startsWith(normalizedSource))) {
+                out().println("cp: Cannot copy " + source.getFileName() + " into itself");
+                continue;
+            }
+            from.add(source);
+            to.add(target);
+            attributes.add(attrs);
+        }
+        if (from.isEmpty()) {
+            return;
+        }
+
+        PrintStream printer = out();
+        FileCopier copier = new FileCopier(update, line -> {
+            printer.println("Copying: " + line);
+            printer.flush(); // progress is worth showing while the command still runs
+        }).stopWhen(this::killed);
+        long elapsed = copier.copy(from, to, attributes);
+        for (Path target : to) {
+            directoryCache.invalidate(target.toAbsolutePath().getParent());
+        }
+        metrics.filesTouched(copier.files.sum() + copier.directories.sum());
+        metrics.bytesWritten(copier.bytes.sum());
+        if (killed()) {
+            return;
+        }
+        out().println("Copied " + copier.report(elapsed) + " in " + elapsed / 1_000_000 + " ms");
+        if (copier.failures.sum() > 0) {
+            out().println("cp: " + copier.failures.sum() + " entries could not be copied, first: " + copier.firstFailure());
+        }
+    }
+
+    private void invalidateParents(Path sourcePath, Path target) {
+        directoryCache.invalidate(sourcePath.toAbsolutePath().getParent());
+        directoryCache.invalidate(target.toAbsolutePath().getParent());
+    }
+
+    /** Resolves an argument that may contain glob characters in its last element to the paths it names. */
+    static List<Path> expandGlob(String argument, Path currentDirectory) throws IOException {
+        Path path = currentDirectory.resolve(argument);
+        String name = path.getFileName() == null ? "" : path.getFileName().toString();
+        if (name.chars().noneMatch(c -> "*?[{".indexOf(c) >= 0)) {
+            return Files.exists(path, LinkOption.NOFOLLOW_LINKS) ? List.of(path) : List.of();
+        }
+        List<Path> matched = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path.getParent(), name)) {
+            stream.forEach(matched::add);
         }
+        matched.sort(null);
+        return matched;
     }
 
 
     public void grep(String[] command, Path currentDirectory) {
-        if (command.length < 3) {
-            System.out.println("grep: Missing pattern or file argument");
+        // Leading flags: -c count only, -n line numbers, -i ignore case, -E regex, -f <file> one pattern per line,
+        // -r search a directory tree, narrowed by --include/--exclude name globs, --group one heading per file
+        boolean countOnly = false;
+        boolean lineNumbers = false;
+        boolean ignoreCase = false;
+        boolean regex = false;
+        boolean recursive = false;
+        boolean group = false;
+        List<String> includes = new ArrayList<>();
+        List<String> excludes = new ArrayList<>();
+        String patternFile = null;
+        int i = 1;
+        while (i < command.length && command[i].startsWith("-") && command[i].length() > 1) {
+            if (command[i].equals("--include") || command[i].equals("--exclude")) {
+                if (i + 1 >= command.length) {
+                    out().println("grep: " + command[i] + " requires a glob");
+                    return;
+                }
+                (command[i].equals("--include") ? includes : excludes).add(command[i + 1]);
+                i += 2;
+                continue;
+            }
+            if (command[i].equals("--group")) {
+                group = true;
+                i++;
+                continue;
+            }
+            if (command[i].equals("-f")) {
+                if (i + 1 >= command.length) {
+                    out().println("grep: -f requires a pattern file");
+                    return;
+                }
+                patternFile = command[i + 1];
+                i += 2;
+                continue;
+            }
+            for (char flag : command[i].substring(1).toCharArray()) {
+                if (flag == 'c') {
+                    countOnly = true;
+                } else if (flag == 'n') {
+                    lineNumbers = true;
+                } else if (flag == 'i') {
+                    ignoreCase = true;
+                } else if (flag == 'E') {
+                    regex = true;
+                } else if (flag == 'r') {
+                    recursive = true;
+                } else {
+                    out().println("grep: Unknown option -" + flag);
+                    return;
+                }
+            }
+            i++;
+        }
+
+        // Compiled patterns and automata are reused across invocations in this session
+        LineMatcher matcher;
+        try {
+            if (patternFile != null) {
+                matcher = session.patternCache().patternFile(currentDirectory.resolve(patternFile), regex, ignoreCase);
+            } else if (i < command.length) {
+                matcher = session.patternCache().pattern(command[i++], regex, ignoreCase);
+            } else {
+                out().println("grep: Missing pattern or file argument");
+                return;
+            }
+        } catch (IOException e) {
+            out().println("grep: Failed to read pattern file " + patternFile);
+            return;
+        } catch (PatternSyntaxException e) {
+            out().println("grep: Invalid regular expression: " + e.getDescription());
+            return;
+        }
+
+        if (recursive) {
+            grepTree(matcher, i < command.length ? command[i] : ".", currentDirectory,
+                    lineNumbers, countOnly, group, includes, excludes);
+            return;
+        }
+        if (i == command.length && in != null) {
+            grepStream(matcher, lineNumbers, countOnly);
+            return;
+        }
+        if (i == command.length) {
+            out().println("grep: Missing pattern or file argument");
+            return;
+        }
+        String fileName = command[i];
+        Path filePath = currentDirectory.resolve(fileName);
+
+        try {
+            GrepEngine engine = new GrepEngine(matcher).stopWhen(this::killed);
+            if (lineNumbers && !countOnly) {
+                // Only an index that already exists pays off; building one costs the same pass as counting
+                engine.withLineIndex(lineIndex(filePath, false));
+            }
+            long matches = engine.search(filePath, lineNumbers, countOnly, (lineNumber, line) -> {
+                if (lineNumber > 0) {
+                    out().println(lineNumber + ":" + line);
+                } else {
+                    out().println(line);
+                }
+            });
+            if (countOnly && !killed()) {
+                out().println(matches);
+            }
+            metrics.bytesRead(Files.size(filePath));
+            metrics.filesTouched(1);
+        } catch (IOException e) {
+            out().println("grep: Failed to read file " + fileName);
+        }
+    }
+
+    private void grepTree(LineMatcher matcher, String dirName, Path currentDirectory, boolean lineNumbers,
+                          boolean countOnly, boolean group, List<String> includes, List<String> excludes) {
+        Path root = currentDirectory.resolve(dirName).normalize();
+        if (!Files.exists(root)) {
+            out().println("grep: No such file or directory " + dirName);
+            return;
+        }
+        RecursiveGrep search = new RecursiveGrep(matcher, lineNumbers, countOnly, group).stopWhen(this::killed);
+        try {
+            for (String glob : includes) {
+                search.include(glob);
+            }
+            for (String glob : excludes) {
+                search.exclude(glob);
+            }
+            search.search(root, currentDirectory, out());
+        } catch (IllegalArgumentException e) {
+            out().println("grep: Invalid glob: " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            out().println("grep: Failed to read directory " + dirName);
+            return;
+        }
+        // Counters are recorded here, on the thread that owns this command's metrics sample
+        metrics.bytesRead(search.bytesSearched.sum());
+        metrics.filesTouched(search.filesSearched.sum());
+        if (search.failures.sum() > 0) {
+            out().println("grep: " + search.failures.sum() + " files or directories could not be read");
+        }
+    }
+
+    private void grepStream(LineMatcher matcher, boolean lineNumbers, boolean countOnly) {
+        // Piped input is filtered line by line so matches flow downstream as soon as they are read.
+        // Bytes are counted as they come off the stream, so multi-byte text and CRLF endings count in full
+        long[] bytes = {0};
+        InputStream counted = new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                bytes[0] += b < 0 ? 0 : 1;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                bytes[0] += Math.max(n, 0);
+                return n;
+            }
+        };
+        BufferedReader reader = new BufferedReader(new InputStreamReader(counted, StandardCharsets.UTF_8));
+        long lineNumber = 0;
+        long matches = 0;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (matcher.matches(line)) {
+                    matches++;
+                    if (!countOnly) {
+                        out().println(lineNumbers ? lineNumber + ":" + line : line);
+                        if (!reader.ready()) {
+                            out().flush(); // upstream is idle, e.g. tail -f waiting: pass matches on now
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            out().println("grep: Failed to read input");
+        } finally {
+            metrics.bytesRead(bytes[0]);
+        }
+        if (countOnly) {
+            out().println(matches);
+        }
+    }
+
+    public void stats(String[] command) {
+        if (command.length > 1 && command[1].equals("--json")) {
+            out().println(metrics.json());
+        } else if (command.length > 1 && command[1].equals("reset")) {
+            metrics.reset();
+            out().println("Statistics cleared");
+        } else {
+            out().print(metrics.table());
+        }
+    }
+
+    public void cache(String[] command) {
+        if (command.length > 1 && command[1].equals("clear")) {
+            directoryCache.clear();
+            session.diskUsage().clear();
+            session.duplicates().clear();
+            synchronized (session.lineIndexes) {
+                session.lineIndexes.clear();
+            }
+            out().println("Directory cache cleared");
+            try {
+                out().println("Removed " + LineIndex.clear(indexHome()) + " line indexes");
+            } catch (IOException e) {
+                out().println("cache: Failed to remove line indexes: " + e.getMessage());
+            }
+        } else if (command.length == 1 || command[1].equals("stats")) {
+            out().println(directoryCache.stats());
+            out().println(session.patternCache().stats());
+            out().println("du: " + session.diskUsage().cachedDirectories() + " directory summaries");
+            out().println("dupes: " + session.duplicates().cachedFiles() + " file hashes");
+        } else {
+            out().println("Usage: cache [stats|clear]");
+        }
+    }
+
+    /**
+     * du [-s] [--depth N] [--top K] [--fresh] [dir]: the apparent size of every directory under dir,
+     * largest-first with --top, or only the total with -s.
+     */
+    public void du(String[] command, Path currentDirectory) {
+        boolean summarize = false;
+        boolean fresh = false;
+        int depth = Integer.MAX_VALUE;
+        int top = 0;
+        String dir = ".";
+        for (int i = 1; i < command.length; i++) {
+            switch (command[i]) {
+                case "-s":
+                    summarize = true;
+                    break;
+                case "--fresh":
+                    fresh = true;
+                    break;
+                case "--depth":
+                case "--top":
+                    if (i + 1 >= command.length) {
+                        out().println("du: " + command[i] + " requires a number");
+                        return;
+                    }
+                    try {
+                        int value = Integer.parseInt(command[i + 1]);
+                        if (command[i].equals("--depth")) {
+                            depth = value;
+                        } else {
+                            top = value;
+                        }
+                    } catch (NumberFormatException e) {
+                        out().println("du: Invalid number: " + command[i + 1]);
+                        return;
+                    }
+                    i++;
+                    break;
+                default:
+                    if (command[i].startsWith("-")) {
+                        out().println("du: Unknown option " + command[i]);
+                        return;
+                    }
+                    dir = command[i];
+            }
+        }
+
+        DiskUsage.Report report;
+        try {
+            report = session.diskUsage().measure(currentDirectory.resolve(dir), dir, summarize || top > 0 ? 0 : depth, top, fresh,
+                    this::killed);
+        } catch (IOException e) {
+            out().println("du: Cannot read " + dir + ": " + e.getMessage());
+            return;
+        }
+        if (killed()) {
+            return; // the totals of a walk cut short would be wrong
+        }
+        PrintStream printer = out();
+        if (top > 0) {
+            for (DiskUsage.Node node : report.largest) {
+                String relative = report.root.path.relativize(node.path).toString().replace(File.separatorChar, '/');
+                printer.println(humanSize(node.bytes) + "\t" + dir + "/" + relative);
+            }
+        } else {
+            printUsage(report.root, dir, printer);
+        }
+        printer.println(report.summary());
+        if (report.failures > 0) {
+            printer.println("du: " + report.failures + " directories could not be read, first: " + report.firstFailure);
+        }
+        metrics.filesTouched(report.cached + report.listed);
+    }
+
+    /**
+     * dupes [--fresh] [dir]: groups of files under dir with the same content, each listed under the size
+     * of one copy, the groups that waste the most space first.
+     */
+    public void dupes(String[] command, Path currentDirectory) {
+        boolean fresh = false;
+        String dir = ".";
+        for (int i = 1; i < command.length; i++) {
+            if (command[i].equals("--fresh")) {
+                fresh = true;
+            } else if (command[i].startsWith("-")) {
+                out().println("dupes: Unknown option " + command[i]);
+                return;
+            } else {
+                dir = command[i];
+            }
+        }
+
+        Path root = currentDirectory.resolve(dir).toAbsolutePath().normalize();
+        if (!Files.isDirectory(root)) {
+            out().println("dupes: Not a directory: " + dir);
+            return;
+        }
+        DuplicateFinder.Report report;
+        try {
+            report = session.duplicates().find(root, fresh, this::killed);
+        } catch (IOException e) {
+            out().println("dupes: Cannot read " + dir + ": " + e.getMessage());
+            return;
+        }
+        if (killed()) {
+            return;
+        }
+        PrintStream printer = out();
+        for (DuplicateFinder.Group group : report.groups) {
+            printer.println(humanSize(group.size) + " x " + group.paths.size());
+            for (Path path : group.paths) {
+                printer.println("  " + dir + "/" + root.relativize(path).toString().replace(File.separatorChar, '/'));
+            }
+        }
+        printer.println(report.summary());
+        if (report.failures > 0) {
+            printer.println("dupes: " + report.failures + " files or directories could not be read, first: " + report.firstFailure);
+        }
+        metrics.filesTouched(report.scanned);
+        metrics.bytesRead(report.bytesHashed);
+    }
+
+    /**
+     * snapshot save [--hash] <dir> <file>: writes a manifest of every path under dir with its size and mtime,
+     * and with --hash the SHA-256 of every file.
+     * snapshot diff <old> <new>: what was added (+), removed (-) or changed (~) between two manifests; new may
+     * also be a directory, which is snapshotted first.
+     */
+    public void snapshot(String[] command, Path currentDirectory) {
+        if (command.length >= 4 && command[1].equals("save")) {
+            boolean hashes = command[2].equals("--hash");
+            if (command.length != (hashes ? 5 : 4)) {
+                out().println("Usage: snapshot save [--hash] <dir> <file> | snapshot diff <old> <new>");
+                return;
+            }
+            String dir = command[command.length - 2];
+            Path file = currentDirectory.resolve(command[command.length - 1]);
+            if (!Files.isDirectory(currentDirectory.resolve(dir))) {
+                out().println("snapshot: Not a directory: " + dir);
+                return;
+            }
+            long start = System.nanoTime();
+            Snapshot.Saved saved;
+            try {
+                saved = Snapshot.save(currentDirectory.resolve(dir), file, hashes, this::killed);
+            } catch (IOException e) {
+                out().println("snapshot: Cannot save " + dir + ": " + e.getMessage());
+                return;
+            }
+            if (saved == null) {
+                return;
+            }
+            directoryCache.invalidate(file.toAbsolutePath().normalize().getParent());
+            out().println(String.format(Locale.ROOT, "Saved %d entries (%d files, %s) to %s in %d ms",
+                    saved.entries, saved.files, humanSize(saved.bytes), command[command.length - 1],
+                    (System.nanoTime() - start) / 1_000_000));
+            if (saved.failures > 0) {
+                out().println("snapshot: " + saved.failures + " paths could not be read, first: " + saved.firstFailure);
+            }
+            metrics.filesTouched(saved.entries);
+            if (hashes) {
+                metrics.bytesRead(saved.bytes);
+            }
+        } else if (command.length == 4 && command[1].equals("diff")) {
+            Path older = currentDirectory.resolve(command[2]);
+            Path newer = currentDirectory.resolve(command[3]);
+            Path temp = null;
+            try {
+                if (Files.isDirectory(newer)) {
+                    // Compare against the tree as it is now, hashed only if the old manifest was
+                    temp = Files.createTempFile("snapshot", ".tmp");
+                    Snapshot.Saved saved = Snapshot.save(newer, temp, Snapshot.hasHashes(older), this::killed);
+                    if (saved == null) {
+                        return;
+                    }
+                    metrics.filesTouched(saved.entries);
+                    newer = temp;
+                }
+                PrintStream printer = out();
+                Snapshot.Diff diff = Snapshot.diff(older, newer, new Snapshot.DiffVisitor() {
+                    @Override
+                    public void added(Snapshot.Entry entry) {
+                        printer.println("+ " + display(entry));
+                    }
+
+                    @Override
+                    public void removed(Snapshot.Entry entry) {
+                        printer.println("- " + display(entry));
+                    }
+
+                    @Override
+                    public void changed(Snapshot.Entry before, Snapshot.Entry after, String what) {
+                        printer.println("~ " + display(after) + " (" + what + ")");
+                    }
+                });
+                printer.println(diff.summary());
+            } catch (IOException e) {
+                out().println("snapshot: " + e.getMessage());
+            } finally {
+                if (temp != null) {
+                    try {
+                        Files.deleteIfExists(temp);
+                    } catch (IOException ignored) {
+                        // Left in the temp directory
+                    }
+                }
+            }
+        } else {
+            out().println("Usage: snapshot save [--hash] <dir> <file> | snapshot diff <old> <new>");
+        }
+    }
+
+    private static String display(Snapshot.Entry entry) {
+        return entry.isDirectory() ? entry.path() + "/" : entry.path();
+    }
+
+    // Post-order like du: every directory after the directories inside it
+    private static void printUsage(DiskUsage.Node node, String display, PrintStream printer) {
+        for (DiskUsage.Node child : node.children) {
+            printUsage(child, display + "/" + child.name, printer);
+        }
+        printer.println(humanSize(node.bytes) + "\t" + display);
+    }
+
+    // Filename indexes live under ~/.cli-index unless -Dcli.index.dir says otherwise
+    static Path indexHome() {
+        String configured = System.getProperty("cli.index.dir");
+        return configured != null ? Paths.get(configured) : Paths.get(System.getProperty("user.home"), ".cli-index");
+    }
+
+    public void index(String[] command, Path currentDirectory) {
+        if (command.length < 2 || !(command[1].equals("build") || command[1].equals("update"))) {
+            out().println("Usage: index build <dir> | index update [dir]");
             return;
         }
-        String pattern = command[1];
-        Path filePath = currentDirectory.resolve(command[2]);
+        Path home = indexHome();
+        try {
+            if (command[1].equals("build")) {
+                if (command.length < 3) {
+                    out().println("index: Missing directory argument");
+                    return;
+                }
+                Path root = currentDirectory.resolve(command[2]).toAbsolutePath().normalize();
+                if (!Files.isDirectory(root)) {
+                    out().println("index: No such directory: " + command[2]);
+                    return;
+                }
+                long start = System.nanoTime();
+                Path file = FileIndex.location(home, root);
+                int entries = FileIndex.build(root, file, this::killed);
+                if (entries < 0) {
+                    return;
+                }
+                metrics.filesTouched(entries);
+                metrics.bytesWritten(Files.size(file));
+                out().println(String.format(Locale.ROOT, "Indexed %d entries under %s in %.1f ms (%s)",
+                        entries, root, (System.nanoTime() - start) / 1e6, humanSize(Files.size(file))));
+                return;
+            }
+
+            // Without a directory every index is brought up to date
+            List<Path> files;
+            if (command.length >= 3) {
+                Path root = currentDirectory.resolve(command[2]).toAbsolutePath().normalize();
+                Path file = FileIndex.location(home, root);
+                if (!Files.exists(file)) {
+                    out().println("index: " + root + " is not indexed; run 'index build " + command[2] + "' first");
+                    return;
+                }
+                files = List.of(file);
+            } else {
+                files = FileIndex.all(home);
+            }
+            for (Path file : files) {
+                long start = System.nanoTime();
+                FileIndex index = FileIndex.load(file);
+                if (!Files.isDirectory(index.root)) {
+                    out().println("index: " + index.root + " no longer exists; skipped");
+                    continue;
+                }
+                int reread = index.update(file);
+                int entries = FileIndex.load(file).count;
+                metrics.filesTouched(reread);
+                out().println(String.format(Locale.ROOT, "Updated index of %s: %d entries, %d directories re-read in %.1f ms",
+                        index.root, entries, reread, (System.nanoTime() - start) / 1e6));
+            }
+        } catch (IOException e) {
+            out().println("index: Failed to write index: " + e.getMessage());
+        }
+    }
 
-        try (Stream<String> lines = Files.lines(filePath)) {
-            lines.filter(line -> line.contains(pattern))
-                    .forEach(System.out::println);
+    public void locate(String[] command) {
+        if (command.length < 2) {
+            out().println("Usage: locate <glob|substring>");
+            return;
+        }
+        String pattern = String.join(" ", Arrays.copyOfRange(command, 1, command.length));
+        try {
+            List<Path> files = FileIndex.all(indexHome());
+            if (files.isEmpty()) {
+                out().println("locate: No index found; run 'index build <dir>' first");
+                return;
+            }
+            PrintStream printer = out();
+            for (Path file : files) {
+                metrics.bytesRead(Files.size(file));
+                FileIndex.load(file).locate(pattern, printer::println);
+            }
         } catch (IOException e) {
-            System.out.println("grep: Failed to read file " + command[2]);
+            out().println("locate: Failed to read index: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            out().println("locate: Invalid glob: " + e.getMessage());
+        }
+    }
+
+    public void echo(String[] command) {
+        out().println(String.join(" ", Arrays.copyOfRange(command, 1, command.length)));
+    }
+
+    // Formats a byte count with a binary unit, e.g. 1536 -> "1.5 KB"
+    static String humanSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        String[] units = {"KB", "MB", "GB", "TB", "PB", "EB"};
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
         }
+        return String.format(Locale.ROOT, "%.1f %s", value, units[unit]);
     }
 
 }
@@ -10,9 +10,12 @@ import java.io.PrintStream;
 import java.nio.file.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.nio.file.Paths;
 import java.io.*;
+import java.nio.file.attribute.FileTime;
 
 
 
@@ -205,6 +208,88 @@ public class CommandsTest {
         // It's often good to assert that no exceptions were thrown, but we can validate if needed.
     }
 
+    @Test
+    void testMvMovesGlobAndSeveralSourcesIntoDirectory() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            Files.writeString(testDirectory.resolve("part" + i + ".csv"), "row " + i);
+        }
+        Files.createDirectories(testDirectory.resolve("tree/sub"));
+        Path target = Files.createDirectory(testDirectory.resolve("archive"));
+
+        commands.mv(new String[]{"mv", "part*.csv", "tree", "archive"}, testDirectory);
+        for (int i = 0; i < 5; i++) {
+            assertEquals("row " + i, Files.readString(target.resolve("part" + i + ".csv")));
+            assertFalse(Files.exists(testDirectory.resolve("part" + i + ".csv")));
+        }
+        assertTrue(Files.isDirectory(target.resolve("tree/sub")));
+
+        Output content = Output.capture();
+        commands = commands.withStreams(null, content);
+        Files.createFile(testDirectory.resolve("a.txt"));
+        Files.createFile(testDirectory.resolve("b.txt"));
+        commands.mv(new String[]{"mv", "a.txt", "b.txt", "c.txt"}, testDirectory);
+        assertTrue(content.text().contains("Target is not a directory"));
+    }
+
+    @Test
+    void testCpRecursiveChunkedAndUpdate() throws IOException {
+        Path source = Files.createDirectories(testDirectory.resolve("build/lib"));
+        for (int i = 0; i < 50; i++) {
+            Files.writeString(source.resolve("small" + i + ".txt"), "content " + i);
+        }
+        // Large enough to be split into chunks; a marker near the end checks the chunks land at the right offsets
+        try (RandomAccessFile big = new RandomAccessFile(source.resolve("big.bin").toFile(), "rw")) {
+            big.setLength(FileCopier.CHUNKED_THRESHOLD + 5);
+            big.seek(FileCopier.CHUNKED_THRESHOLD);
+            big.write("tail!".getBytes());
+        }
+
+        Output content = Output.capture();
+        commands = commands.withStreams(null, content);
+        commands.cp(new String[]{"cp", "build", "out"}, testDirectory);
+        assertTrue(content.text().contains("-r not specified"));
+        assertFalse(Files.exists(testDirectory.resolve("out")));
+
+        commands.cp(new String[]{"cp", "-r", "build", "out"}, testDirectory);
+        Path copy = testDirectory.resolve("out/lib");
+        assertEquals("content 49", Files.readString(copy.resolve("small49.txt")));
+        assertEquals(Files.size(source.resolve("big.bin")), Files.size(copy.resolve("big.bin")));
+        try (RandomAccessFile big = new RandomAccessFile(copy.resolve("big.bin").toFile(), "r")) {
+            byte[] tail = new byte[5];
+            big.seek(FileCopier.CHUNKED_THRESHOLD);
+            big.readFully(tail);
+            assertEquals("tail!", new String(tail));
+        }
+        assertEquals(Files.getLastModifiedTime(source.resolve("small0.txt")), Files.getLastModifiedTime(copy.resolve("small0.txt")));
+
+        content.reset();
+        Files.writeString(source.resolve("small0.txt"), "changed");
+        Files.setLastModifiedTime(source.resolve("small0.txt"), FileTime.fromMillis(System.currentTimeMillis() + 5000));
+        // out already exists, so build/lib lands on out/lib
+        commands.cp(new String[]{"cp", "-r", "--update", "build/lib", "out"}, testDirectory);
+        assertTrue(content.text().contains("Copied 1 files"), content.text());
+        assertTrue(content.text().contains("50 unchanged files skipped"));
+        assertEquals("changed", Files.readString(copy.resolve("small0.txt")));
+    }
+
+    @Test
+    void testFileCopierCopiesTreeWithTimes() throws IOException {
+        // The copy path mv falls back to when source and target are on different volumes
+        Path source = Files.createDirectories(testDirectory.resolve("src/nested"));
+        Files.write(source.resolve("data.bin"), new byte[300_000]);
+        Files.writeString(testDirectory.resolve("src/top.txt"), "top");
+        Files.setLastModifiedTime(source.resolve("data.bin"), FileTime.fromMillis(1_000_000_000_000L));
+
+        FileCopier copier = new FileCopier(line -> {});
+        copier.copy(testDirectory.resolve("src"), testDirectory.resolve("dst"));
+        assertEquals(0, copier.failures.sum());
+        assertEquals(2, copier.files.sum());
+        assertEquals(300_003, copier.bytes.sum());
+        assertEquals("top", Files.readString(testDirectory.resolve("dst/top.txt")));
+        assertEquals(FileTime.fromMillis(1_000_000_000_000L),
+                Files.getLastModifiedTime(testDirectory.resolve("dst/nested/data.bin")));
+    }
+
     @Test
     void testGrepFindsPatternInFile() throws IOException {
         // Create a file with known content
@@ -238,6 +323,671 @@ public class CommandsTest {
     }
 
 
+    @Test
+    void testGrepCountOnly() throws IOException {
+        Path file = testDirectory.resolve("sample.txt");
+        Files.write(file, List.of("error one", "ok", "error two", "fine"));
+
+        Output content = Output.capture();
+        commands = commands.withStreams(null, content);
+        commands.grep(new String[]{"grep", "-c", "error", "sample.txt"}, testDirectory);
+        assertEquals("2", content.text().trim());
+    }
+
+    @Test
+    void testGrepLineNumbers() throws IOException {
+        Path file = testDirectory.resolve("sample.txt");
+        Files.write(file, List.of("alpha", "beta", "alphabet"));
+
+        Output content = Output.capture();
+        commands = commands.withStreams(null, content);
+        commands.grep(new String[]{"grep", "-n", "alpha", "sample.txt"}, testDirectory);
+        assertEquals(List.of("1:alpha", "3:alphabet"), content.text().lines().toList());
+    }
+
+    @Test
+    void testGrepRecursiveFiltersAndSkipsBinary() throws IOException {
+        Path sub = Files.createDirectories(testDirectory.resolve("src/deep"));
+        Files.write(testDirectory.resolve("a.txt"), List.of("needle one", "hay"));
+        Files.write(sub.resolve("b.txt"), List.of("hay", "needle two"));
+        Files.write(sub.resolve("c.log"), List.of("needle three"));
+        Files.write(testDirectory.resolve("d.bin"), new byte[]{'n', 'e', 'e', 'd', 'l', 'e', 0, '\n'});
+
+        Output content = Output.capture();
+        commands = commands.withStreams(null, content);
+        commands.grep(new String[]{"grep", "-rn", "--include", "*.txt", "needle", "."}, testDirectory);
+        String sep = testDirectory.getFileSystem().getSeparator();
+        assertEquals(List.of("a.txt:1:needle one", "src" + sep + "deep" + sep + "b.txt:2:needle two"),
+                content.text().lines().sorted().toList());
+
+        content.reset();
+        commands.grep(new String[]{"grep", "-rc", "--exclude", "*.txt", "needle"}, testDirectory);
+        assertEquals(List.of("src" + sep + "deep" + sep + "c.log:1"), content.text().lines().toList());
+    }
+
+    @Test
+    void testLineIndexServesCatLinesHeadTailAndGrep() throws IOException {
+        List<String> lines = new java.util.ArrayList<>();
+        for (int i = 1; i <= 1000; i++) {
+            lines.add("line " + i + (i % 100 == 0 ? " marker" : ""));
+        }
+        Files.write(testDirectory.resolve("big.log"), lines);
+        System.setProperty("cli.index.dir", testDirectory.resolve("index").toString());
+        try {
+            Output content = Output.capture();
+            Commands indexed = new Commands(null, content);
+
+            // Before any index exists head and tail scan only what they need
+            indexed.tail(new String[]{"tail", "-n", "2", "big.log"}, testDirectory);
+            assertEquals(List.of("line 999", "line 1000 marker"), content.text().lines().toList());
+            content.reset();
+            indexed.head(new String[]{"head", "-n", "3", "big.log"}, testDirectory);
+            assertEquals(List.of("line 1", "line 2", "line 3"), content.text().lines().toList());
+
+            content.reset();
+            indexed.cat(new String[]{"cat", "--lines", "500:502", "big.log"}, testDirectory);
+            assertEquals(List.of("line 500 marker", "line 501", "line 502"), content.text().lines().toList());
+            LineIndex index = LineIndex.open(testDirectory.resolve("big.log"), testDirectory.resolve("index"), false);
+            assertNotNull(index, "cat --lines leaves a sidecar behind");
+            assertEquals(1000, index.lines());
+            assertEquals(998, index.lineAt(index.start(998) + 3));
+
+            content.reset();
+            indexed.tail(new String[]{"tail", "-n", "2", "big.log"}, testDirectory);
+            assertEquals(List.of("line 999", "line 1000 marker"), content.text().lines().toList());
+
+            content.reset();
+            indexed.grep(new String[]{"grep", "-n", "marker", "big.log"}, testDirectory);
+            List<String> hits = content.text().lines().toList();
+            assertEquals(10, hits.size());
+            assertEquals("700:line 700 marker", hits.get(6));
+
+            // Appending makes the sidecar stale, so it is rebuilt
+            Files.writeString(testDirectory.resolve("big.log"), "line 1001\n", StandardOpenOption.APPEND);
+            content.reset();
+            indexed.cat(new String[]{"cat", "--lines", "1001:", "big.log"}, testDirectory);
+            assertEquals(List.of("line 1001"), content.text().lines().toList());
+
+            // A sidecar found stale is deleted, and cache clear removes the rest
+            Path sidecar = LineIndex.location(testDirectory.resolve("index"), testDirectory.resolve("big.log").toAbsolutePath().normalize());
+            Files.writeString(testDirectory.resolve("big.log"), "line 1002\n", StandardOpenOption.APPEND);
+            assertNull(LineIndex.open(testDirectory.resolve("big.log"), testDirectory.resolve("index"), false));
+            assertFalse(Files.exists(sidecar));
+            indexed.cat(new String[]{"cat", "--lines", "1:", "big.log"}, testDirectory);
+            assertTrue(Files.exists(sidecar));
+            content.reset();
+            indexed.cache(new String[]{"cache", "clear"});
+            assertTrue(content.text().contains("Removed 1 line indexes"), content.text());
+            assertFalse(Files.exists(sidecar));
+        } finally {
+            System.clearProperty("cli.index.dir");
+        }
+    }
+
+    @Test
+    void testTailFollowsAppendsAndRotation() throws Exception {
+        Path log = testDirectory.resolve("app.log");
+        Files.write(log, List.of("one", "two", "three"));
+        Output content = Output.capture();
+        Commands following = new Commands(null, content);
+        Thread tail = new Thread(() -> following.tail(new String[]{"tail", "-f", "-n", "1", "app.log"}, testDirectory));
+        tail.start();
+        try {
+            awaitOutput(content, "three");
+            Files.writeString(log, "four\n", StandardOpenOption.APPEND);
+            awaitOutput(content, "four");
+
+            // Rotate: the old file is moved away and a new one takes its name
+            Files.move(log, testDirectory.resolve("app.log.1"));
+            Files.writeString(log, "fresh\n");
+            awaitOutput(content, "fresh");
+            assertFalse(content.text().contains("two"));
+        } finally {
+            tail.interrupt();
+            tail.join(5000);
+        }
+        assertFalse(tail.isAlive());
+    }
+
+    @Test
+    void testTailFollowPipesIntoGrep() throws Exception {
+        Path log = testDirectory.resolve("app.log");
+        Files.write(log, List.of("INFO start"));
+        Output content = Output.capture();
+        commands = commands.withStreams(null, content);
+        Thread pipeline = new Thread(() -> Pipeline.run("tail -f " + log + " | grep ERROR", commands));
+        pipeline.start();
+        try {
+            Thread.sleep(300);
+            Files.writeString(log, "INFO fine\nERROR disk full\nINFO ok\n", StandardOpenOption.APPEND);
+            awaitOutput(content, "ERROR disk full");
+            assertFalse(content.text().contains("INFO"));
+        } finally {
+            pipeline.interrupt();
+            pipeline.join(5000);
+        }
+    }
+
+    @Test
+    void testBackgroundJobsKeepTheirDirectoryAndOutput() throws Exception {
+        Files.createDirectories(testDirectory.resolve("src"));
+        Files.write(testDirectory.resolve("src/a.txt"), List.of("needle one", "hay"));
+        Files.write(testDirectory.resolve("app.log"), List.of("start"));
+        Output content = Output.capture();
+        Commands console = new Commands(null, content);
+
+        // Relative paths resolve against the directory the job was started in, not the session's
+        Main.startJob("grep -r needle src &", console, testDirectory);
+        Main.startJob("ls-r > listing.txt &", console, testDirectory);
+        Main.startJob("tail -f app.log &", console, testDirectory);
+        Main.startJob("cd src &", console, testDirectory);
+        assertTrue(content.text().contains("[1] grep -r needle src"));
+        assertTrue(content.text().contains("cd cannot run in the background"));
+
+        content.reset();
+        console.jobs();
+        assertTrue(content.text().contains("tail -f app.log"));
+        assertTrue(content.text().contains("Running"));
+
+        content.reset();
+        console.kill(new String[]{"kill", "%3"});
+        console.waitJobs(new String[]{"wait"});
+        String waited = content.text();
+        assertTrue(waited.contains("needle one"), waited);
+        assertTrue(waited.contains("Done"), waited);
+        assertTrue(waited.contains("Terminated"), waited);
+        assertTrue(Files.readString(testDirectory.resolve("listing.txt")).contains("a.txt"));
+
+        // Every job was collected by wait
+        content.reset();
+        console.jobs();
+        console.fg(new String[]{"fg"});
+        assertEquals("fg: No current job", content.text().trim());
+    }
+
+    @Test
+    void testKillStopsWalksAndOnlyJobsThatStoppedAreTerminated() throws Exception {
+        Path tree = Files.createDirectories(testDirectory.resolve("tree"));
+        for (int i = 0; i < 20; i++) {
+            Path dir = Files.createDirectories(tree.resolve("d" + i));
+            for (int j = 0; j < 5; j++) {
+                Files.write(dir.resolve("f" + j), new byte[]{(byte) j});
+            }
+        }
+        // The walkers, du and dupes give up once the flag is up, on whichever pool thread sees it
+        java.util.concurrent.atomic.AtomicInteger visits = new java.util.concurrent.atomic.AtomicInteger();
+        new TreeWalker().stopWhen(() -> visits.get() >= 10).walkParallel(tree, (path, attrs, depth) -> visits.incrementAndGet());
+        assertTrue(visits.get() < 120, "visited " + visits.get());
+        visits.set(0);
+        new TreeWalker(Integer.MAX_VALUE, true).stopWhen(() -> visits.get() >= 10).walkOrdered(tree, (path, attrs, depth) -> visits.incrementAndGet());
+        assertEquals(10, visits.get());
+        assertEquals(0, new DuplicateFinder().find(tree, true, () -> true).groups.size());
+        assertEquals(0, new DiskUsage().measure(tree, "tree", 0, 0, true, () -> true).root.bytes());
+
+        Jobs jobs = new Jobs();
+        // A command that polls the flag stops and is reported as terminated
+        Jobs.Job polling = jobs.start("spin", testDirectory, null, job -> {
+            while (!job.stopIfKilled()) {
+                Thread.onSpinWait();
+            }
+        });
+        // One that never looks at it runs to the end and is done, killed or not
+        java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+        Jobs.Job ignoring = jobs.start("busy", testDirectory, null, job -> {
+            while (release.getCount() > 0) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // keeps going, like a command busy computing
+                }
+            }
+            job.out.println("finished");
+        });
+        assertTrue(jobs.kill(polling));
+        assertTrue(jobs.kill(ignoring));
+        release.countDown();
+        assertTrue(Jobs.await(polling) && Jobs.await(ignoring));
+        assertTrue(polling.describe().contains("Terminated"), polling.describe());
+        assertTrue(ignoring.describe().contains("Done"), ignoring.describe());
+        assertEquals("finished", ignoring.output().trim());
+    }
+
+    @Test
+    void testJobOutputIsCappedAtWholeLines() {
+        Jobs.Buffer buffer = new Jobs.Buffer(10);
+        PrintStream out = new PrintStream(buffer, true, java.nio.charset.StandardCharsets.UTF_8);
+        out.print("abc\ndefg\nhij\n");
+        out.print("klm\n");
+        assertEquals("abc\ndefg\n", buffer.text(), "Cut after the last whole line that fits");
+        assertEquals(8, buffer.dropped);
+    }
+
+    @Test
+    void testDuSumsTreeAndReusesCachedSummaries() throws Exception {
+        Path tree = Files.createDirectories(testDirectory.resolve("data/big/deeper"));
+        Files.createDirectories(testDirectory.resolve("data/small"));
+        Files.write(tree.resolve("blob.bin"), new byte[300_000]);
+        Files.write(testDirectory.resolve("data/big/a.bin"), new byte[100_000]);
+        Files.write(testDirectory.resolve("data/small/b.txt"), new byte[10]);
+        long expected;
+        try (java.util.stream.Stream<Path> paths = Files.walk(testDirectory.resolve("data"))) {
+            expected = paths.mapToLong(p -> p.toFile().length()).sum();
+        }
+
+        DiskUsage usage = new DiskUsage();
+        DiskUsage.Report report = usage.measure(testDirectory.resolve("data"), "data", 1, 2, false);
+        assertEquals(expected, report.root.bytes());
+        assertEquals(3, report.root.files);
+        assertEquals(3, report.root.directories);
+        assertEquals(List.of("big", "small"), report.root.children.stream().map(n -> n.name).toList());
+        assertEquals(List.of("big", "deeper"), report.largest.stream().map(n -> n.name).toList());
+        assertEquals(0, report.cached);
+
+        // Unchanged directories come from the cache; a new entry changes its directory's mtime
+        assertEquals(4, usage.measure(testDirectory.resolve("data"), "data", 0, 0, false).cached);
+        Files.write(testDirectory.resolve("data/small/c.txt"), new byte[500]);
+        Files.setLastModifiedTime(testDirectory.resolve("data/small"), FileTime.fromMillis(System.currentTimeMillis() + 5000));
+        report = usage.measure(testDirectory.resolve("data"), "data", 0, 0, false);
+        assertEquals(expected + 500, report.root.bytes());
+        assertEquals(3, report.cached);
+
+        Output content = Output.capture();
+        Commands printing = new Commands(null, content);
+        printing.du(new String[]{"du", "--depth", "1", "data"}, testDirectory);
+        List<String> lines = content.text().lines().toList();
+        assertTrue(lines.get(0).endsWith("\tdata/big"), lines.toString());
+        assertTrue(lines.get(1).endsWith("\tdata/small"), lines.toString());
+        assertTrue(lines.get(2).endsWith("\tdata"), lines.toString());
+        assertTrue(lines.get(3).startsWith("4 files, 3 directories"), lines.toString());
+
+        content.reset();
+        printing.du(new String[]{"du", "--top", "1", "data"}, testDirectory);
+        assertTrue(content.text().lines().findFirst().orElse("").endsWith("\tdata/big"), content.text());
+        assertEquals(2, content.text().lines().count());
+    }
+
+    @Test
+    void testDupesNarrowsBySizeThenHashesAndCaches() throws Exception {
+        byte[] data = new byte[20_000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        Files.createDirectories(testDirectory.resolve("tree/copy"));
+        Files.write(testDirectory.resolve("tree/a.bin"), data);
+        Files.write(testDirectory.resolve("tree/copy/a.bin"), data);
+        // Same size and same ends, different middle: only the full hash tells it apart
+        byte[] middle = data.clone();
+        middle[10_000] ^= 1;
+        Files.write(testDirectory.resolve("tree/b.bin"), middle);
+        Files.writeString(testDirectory.resolve("tree/x.txt"), "hello");
+        Files.writeString(testDirectory.resolve("tree/copy/y.txt"), "hello");
+        Files.writeString(testDirectory.resolve("tree/unique.txt"), "only one of these");
+        Files.createFile(testDirectory.resolve("tree/empty1"));
+        Files.createFile(testDirectory.resolve("tree/empty2"));
+
+        DuplicateFinder finder = new DuplicateFinder();
+        DuplicateFinder.Report report = finder.find(testDirectory.resolve("tree"), false);
+        assertEquals(2, report.groups.size());
+        assertEquals(20_000, report.groups.get(0).wasted());
+        assertEquals(List.of("a.bin", "a.bin"), report.groups.get(0).paths.stream().map(p -> p.getFileName().toString()).toList());
+        assertEquals(5, report.sameSize);
+        assertEquals(5, report.fullHashed, "b.bin survives the partial hash, unique.txt never gets one");
+        assertEquals(0, report.cached);
+
+        // Unchanged files come from the cache; a rewrite with a new mtime is hashed again
+        assertEquals(5, finder.find(testDirectory.resolve("tree"), false).cached);
+        Files.write(testDirectory.resolve("tree/b.bin"), data);
+        Files.setLastModifiedTime(testDirectory.resolve("tree/b.bin"), FileTime.fromMillis(System.currentTimeMillis() + 5000));
+        report = finder.find(testDirectory.resolve("tree"), false);
+        assertEquals(4, report.cached);
+        assertEquals(3, report.groups.get(0).paths.size());
+
+        Output content = Output.capture();
+        new Commands(null, content).dupes(new String[]{"dupes", "tree"}, testDirectory);
+        List<String> lines = content.text().lines().toList();
+        assertEquals(List.of("19.5 KB x 3", "  tree/a.bin", "  tree/b.bin", "  tree/copy/a.bin", "5 B x 2", "  tree/copy/y.txt", "  tree/x.txt"),
+                lines.subList(0, 7));
+        assertTrue(lines.get(7).startsWith("2 groups, 3 redundant files"), lines.get(7));
+    }
+
+    @Test
+    void testSnapshotSaveAndDiffMergeJoinsManifests() throws Exception {
+        Path tree = Files.createDirectories(testDirectory.resolve("deploy/a"));
+        Files.writeString(tree.resolve("x.txt"), "x");
+        // "a-b" sorts before "a" + '/' byte-wise but after the whole of a/ in walk order
+        Files.writeString(testDirectory.resolve("deploy/a-b"), "between");
+        Files.writeString(testDirectory.resolve("deploy/config.yml"), "port: 80");
+        Files.writeString(testDirectory.resolve("deploy/old.log"), "gone soon");
+        Files.writeString(testDirectory.resolve("deploy/app.jar"), "v1");
+
+        Output content = Output.capture();
+        Commands snapshots = new Commands(null, content);
+        snapshots.snapshot(new String[]{"snapshot", "save", "--hash", "deploy", "before.snap"}, testDirectory);
+        assertTrue(content.text().startsWith("Saved 6 entries (5 files"), content.text());
+
+        Files.delete(testDirectory.resolve("deploy/old.log"));
+        Files.writeString(testDirectory.resolve("deploy/a/new.txt"), "new");
+        Files.writeString(testDirectory.resolve("deploy/config.yml"), "port: 8080");
+        // Same size and mtime, different bytes: only the hash notices
+        FileTime jarTime = Files.getLastModifiedTime(testDirectory.resolve("deploy/app.jar"));
+        Files.writeString(testDirectory.resolve("deploy/app.jar"), "v2");
+        Files.setLastModifiedTime(testDirectory.resolve("deploy/app.jar"), jarTime);
+
+        content.reset();
+        snapshots.snapshot(new String[]{"snapshot", "diff", "before.snap", "deploy"}, testDirectory);
+        List<String> lines = content.text().lines().toList();
+        assertEquals("+ a/new.txt", lines.get(0));
+        assertEquals("~ app.jar (content)", lines.get(1));
+        assertTrue(lines.get(2).startsWith("~ config.yml (size 8 -> 10"), lines.get(2));
+        assertEquals("- old.log", lines.get(3));
+        assertEquals("1 added, 1 removed, 2 changed, 3 unchanged", lines.get(4));
+
+        content.reset();
+        snapshots.snapshot(new String[]{"snapshot", "save", "deploy", "after.snap"}, testDirectory);
+        content.reset();
+        snapshots.snapshot(new String[]{"snapshot", "diff", "after.snap", "after.snap"}, testDirectory);
+        assertEquals("0 added, 0 removed, 0 changed, 6 unchanged", content.text().trim());
+
+        content.reset();
+        snapshots.snapshot(new String[]{"snapshot", "diff", "deploy/a/x.txt", "after.snap"}, testDirectory);
+        assertTrue(content.text().startsWith("snapshot: Not a snapshot"), content.text());
+    }
+
+    @Test
+    void testOneShotModeAndLazilyBoundHandlers() throws Exception {
+        assertEquals(0, Main.runOnce("mkdir " + testDirectory.resolve("a") + " " + testDirectory.resolve("b")));
+        assertTrue(Files.isDirectory(testDirectory.resolve("a")));
+        assertTrue(Files.isDirectory(testDirectory.resolve("b")));
+        assertEquals(1, Main.runOnce("frobnicate"));
+        assertEquals(2, Main.runOnce("echo 'unterminated"));
+
+        List<String> bound = new java.util.ArrayList<>();
+        CommandRegistry registry = new CommandRegistry(name -> {
+            bound.add(name);
+            return (commands, command, directory) -> true;
+        }).command("pwd").control("exit", true);
+        assertTrue(bound.isEmpty(), "Nothing is bound while commands are registered");
+        registry.lookup("pwd").handler();
+        registry.lookup("pwd").handler();
+        assertEquals(List.of("pwd"), bound);
+    }
+
+    // Waits up to five seconds for text to appear in output written by another thread
+    private static void awaitOutput(Output content, String text) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!content.text().contains(text) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(content.text().contains(text), "expected '" + text + "' in: " + content.text());
+    }
+
+    @Test
+    void testIndexBuildLocateAndUpdate() throws IOException {
+        Path tree = Files.createDirectories(testDirectory.resolve("tree/src/main"));
+        Files.createDirectories(testDirectory.resolve("tree/docs"));
+        for (int i = 0; i < 40; i++) {
+            Files.createFile(tree.resolve("File" + i + ".java"));
+            Files.createFile(testDirectory.resolve("tree/docs/page" + i + ".md"));
+        }
+        System.setProperty("cli.index.dir", testDirectory.resolve("index").toString());
+        try {
+            Output content = Output.capture();
+            Commands indexed = new Commands(null, content);
+            indexed.index(new String[]{"index", "build", "tree"}, testDirectory);
+            assertTrue(content.text().startsWith("Indexed 84 entries"));
+
+            content.reset();
+            indexed.locate(new String[]{"locate", "File3"});
+            assertEquals(11, content.text().lines().count()); // File3 and File30..File39
+
+            content.reset();
+            indexed.locate(new String[]{"locate", "src/main/File1?.java"});
+            assertEquals(10, content.text().lines().count());
+
+            content.reset();
+            indexed.locate(new String[]{"locate", "*.md"});
+            assertEquals(40, content.text().lines().count());
+
+            // Only the directory that changed is listed again
+            Files.createFile(testDirectory.resolve("tree/docs/new.md"));
+            Files.setLastModifiedTime(testDirectory.resolve("tree/docs"), FileTime.fromMillis(System.currentTimeMillis() + 5000));
+            content.reset();
+            indexed.index(new String[]{"index", "update", "tree"}, testDirectory);
+            assertTrue(content.text().contains("85 entries, 1 directories re-read"));
+            content.reset();
+            indexed.locate(new String[]{"locate", "new.md"});
+            assertEquals(List.of(testDirectory.resolve("tree/docs/new.md").toAbsolutePath().toString()),
+                    content.text().lines().toList());
+
+            // An index too large for its int offsets is refused, and the one in place is kept
+            Path root = testDirectory.resolve("tree").toAbsolutePath().normalize();
+            Path file = FileIndex.location(testDirectory.resolve("index"), root);
+            List<FileIndex.Entry> entries = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                entries.add(new FileIndex.Entry(("file" + i).getBytes(), false, 0));
+            }
+            IOException tooLarge = assertThrows(IOException.class, () -> FileIndex.write(root, entries, file, 256));
+            assertTrue(tooLarge.getMessage().contains("would be larger than"), tooLarge.getMessage());
+            assertEquals(85, FileIndex.load(file).count);
+        } finally {
+            System.clearProperty("cli.index.dir");
+        }
+    }
+
+    @Test
+    void testGrepAcrossChunks() throws IOException {
+        // Larger than one chunk so the parallel path and line numbering across chunks are exercised
+        Path file = testDirectory.resolve("big.txt");
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            for (int i = 1; i <= 2_000_000; i++) {
+                writer.write(i % 250_000 == 0 ? "line " + i + " needle" : "line " + i + " haystack");
+                writer.newLine();
+            }
+        }
+
+        Output content = Output.capture();
+        commands = commands.withStreams(null, content);
+        commands.grep(new String[]{"grep", "-n", "needle", "big.txt"}, testDirectory);
+        List<String> lines = content.text().lines().toList();
+        assertEquals(8, lines.size());
+        assertEquals("250000:line 250000 needle", lines.get(0));
+        assertEquals("2000000:line 2000000 needle", lines.get(7));
+    }
+
+    @Test
+    void testGrepIgnoreCaseAndRegex() throws IOException {
+        Files.write(testDirectory.resolve("app.log"), List.of("ERROR disk full", "error: timeout", "INFO ok", "WARN retry 42"));
+
+        Output content = Output.capture();
+        commands = commands.withStreams(null, content);
+        commands.grep(new String[]{"grep", "-i", "error", "app.log"}, testDirectory);
+        assertEquals(List.of("ERROR disk full", "error: timeout"), content.text().lines().toList());
+
+        content.reset();
+        commands.grep(new String[]{"grep", "-E", "^(INFO|WARN) .*\\d+$", "app.log"}, testDirectory);
+        assertEquals(List.of("WARN retry 42"), content.text().lines().toList());
+    }
+
+    @Test
+    void testGrepPatternFileMatchesAnyPatternAndIsCached() throws IOException {
+        Files.write(testDirectory.resolve("app.log"), List.of("user alice logged in", "user bob failed", "disk carol", "nothing"));
+        Files.write(testDirectory.resolve("names.txt"), List.of("Alice", "carol", "", "dave"));
+
+        Output content = Output.capture();
+        commands = commands.withStreams(null, content);
+        String[] grep = {"grep", "-i", "-f", "names.txt", "app.log"};
+        commands.grep(grep, testDirectory);
+        commands.grep(grep, testDirectory);
+
+        assertEquals(List.of("user alice logged in", "disk carol", "user alice logged in", "disk carol"),
+                content.text().lines().toList());
+
+        content.reset();
+        commands.cache(new String[]{"cache", "stats"});
+        assertTrue(content.text().contains("compiled patterns: 1/256, hits: 1, misses: 1"), content.text());
+    }
+
+    @Test
+    void testAhoCorasickFindsOverlappingPatterns() {
+        LineMatcher matcher = LineMatcher.anyOf(List.of("he", "she", "hers", "his"), false);
+        assertTrue(matcher.matches("ushers"));
+        assertTrue(matcher.matches("this"));
+        assertFalse(matcher.matches("hxs"));
+    }
+
+    @Test
+    void testGrepReadsPipedInput() {
+        Output content = Output.capture();
+        InputStream piped = new ByteArrayInputStream("ERROR timeout\nINFO ok\nERROR disk\n".getBytes());
+        Commands stage = commands.withStreams(piped, content);
+
+        stage.grep(new String[]{"grep", "ERROR"}, testDirectory);
+        assertEquals(List.of("ERROR timeout", "ERROR disk"), content.text().lines().toList());
+
+        byte[] encoded = "ERROR délai\r\nINFO ok\r\n".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        Metrics.Sample sample = commands.metrics().begin("grep");
+        commands.withStreams(new ByteArrayInputStream(encoded), Output.capture())
+                .grep(new String[]{"grep", "-c", "ERROR"}, testDirectory);
+        commands.metrics().end(sample);
+        assertEquals(encoded.length, sample.bytesRead, "Piped input is counted in encoded bytes");
+    }
+
+    @Test
+    void testOutputBuffersUntilFlushAndLimitDropsLines() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        Output buffered = Output.to(sink);
+        buffered.println("héllo");
+        assertEquals(0, sink.size(), "Nothing reaches the stream before a flush point");
+        buffered.flush();
+        assertEquals("héllo" + System.lineSeparator(), sink.toString(java.nio.charset.StandardCharsets.UTF_8));
+
+        Files.write(testDirectory.resolve("many.txt"), List.of("1", "2", "3", "4", "5"));
+        Output content = Output.capture();
+        Commands limited = new Commands(null, content);
+        Main.execute(new String[]{"cat", "many.txt", "--limit", "2"}, limited, testDirectory);
+        assertEquals(List.of("1", "2", "... 3 more lines not shown"), content.text().lines().toList());
+
+        content.reset();
+        Main.execute(new String[]{"cat", "--limit", "x", "many.txt"}, limited, testDirectory);
+        assertEquals("cat: --limit needs a number of lines", content.text().trim());
+    }
+
+    @Test
+    void testOutputLimitHoldsAcrossBufferDrains() {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        Output buffered = Output.to(sink);
+        buffered.limit(40_000);
+        // Leaves two bytes free, so the non-ASCII part of the next line has to drain what came before it
+        byte[] padding = new byte[Output.BUFFER_SIZE - 2];
+        Arrays.fill(padding, (byte) 'x');
+        padding[padding.length - 1] = '\n';
+        buffered.write(padding, 0, padding.length);
+        buffered.print("aé\n");
+        List<String> expected = new ArrayList<>(List.of(new String(padding, 0, padding.length - 1), "aé"));
+        for (int i = 0; i < 50_000; i++) {
+            String line = i % 3 == 0 ? "ligne é " + i : "line " + i;
+            buffered.print(line + "\n");
+            if (expected.size() < 40_000) {
+                expected.add(line);
+            }
+        }
+        assertEquals(10_002, buffered.endLimit(), "Every line past the limit is counted once");
+        buffered.flush();
+        assertEquals(expected, sink.toString(java.nio.charset.StandardCharsets.UTF_8).lines().toList(),
+                "Lines written before a drain are neither sent twice nor left out of the limit");
+    }
+
+    @Test
+    void testOutputLimitCountsEachDroppedLineOnce() {
+        Output content = Output.capture();
+        content.limit(2);
+        content.println("one");
+        content.print("two\nthree");
+        content.println(" end");
+        content.write("four\nfive\n".getBytes(), 0, 10);
+        content.println("six");
+        content.print("seven\neight\n");
+        content.println();
+        assertEquals(7, content.endLimit());
+        assertEquals(List.of("one", "two"), content.text().lines().toList());
+        content.println("after");
+        assertEquals(List.of("one", "two", "after"), content.text().lines().toList(), "endLimit lifts the limit");
+    }
+
+    @Test
+    void testPipelineChainsStages() throws IOException {
+        Files.write(testDirectory.resolve("app.log"), List.of("ERROR timeout", "ERROR disk", "INFO timeout"));
+
+        Output content = Output.capture();
+        commands = commands.withStreams(null, content);
+        Pipeline.run("cat " + testDirectory.resolve("app.log") + " | grep ERROR | grep timeout", commands);
+        assertEquals(List.of("ERROR timeout"), content.text().lines().toList());
+    }
+
+    @Test
+    void testSingleCommandRedirectsLikeAPipeline() throws IOException {
+        Files.createDirectories(testDirectory.resolve("src"));
+        Files.write(testDirectory.resolve("src/a.txt"), List.of("a"));
+        Output content = Output.capture();
+        Commands console = new Commands(null, content);
+        CommandLine line = new CommandLine();
+
+        assertTrue(line.parse("ls src > listing.txt"));
+        assertTrue(Main.dispatch(line, console, testDirectory));
+        assertTrue(line.parse("ls src | cat > piped.txt"));
+        assertTrue(Main.dispatch(line, console, testDirectory));
+        assertEquals("", content.text(), "Everything went to the files");
+        assertEquals(Files.readString(testDirectory.resolve("piped.txt")), Files.readString(testDirectory.resolve("listing.txt")));
+        assertTrue(Files.readString(testDirectory.resolve("listing.txt")).contains("a.txt"));
+    }
+
+    @Test
+    void testPipelineRefusesCdAndExit() throws IOException {
+        Files.createDirectories(testDirectory.resolve("sub"));
+        Path before = Main.currentDirectory();
+        Output content = Output.capture();
+        Commands stage = commands.withStreams(null, content);
+
+        // Stages run on threads of their own, which must not move the session or end it
+        Pipeline.run("cd " + testDirectory.resolve("sub") + " | ls", stage);
+        Pipeline.run("echo x | time exit", stage);
+        assertEquals(List.of("cd cannot run in a pipeline", "exit cannot run in a pipeline"), content.text().lines().toList());
+        assertEquals(before, Main.currentDirectory());
+    }
+
+    @Test
+    void testCommandLineTokenizesQuotesOperatorsAndRedirects() throws IOException {
+        CommandLine line = new CommandLine();
+        assertTrue(line.parse("  grep   -E \"disk|net work\" 'a > b'\\ c   app.log | grep -c x >> out.txt"));
+        assertEquals(2, line.stages());
+        assertArrayEquals(new String[]{"grep", "-E", "disk|net work", "a > b c", "app.log"}, line.command(0));
+        assertArrayEquals(new String[]{"grep", "-c", "x"}, line.command(1));
+        assertEquals(CommandLine.Redirect.APPEND, line.redirect());
+        assertEquals("out.txt", line.target());
+        assertTrue(line.isNamed(1, "grep"));
+
+        // The same instance parses the next line from scratch
+        assertTrue(line.parse("echo \"say \\\"hi\\\"\" \"\" &"));
+        assertArrayEquals(new String[]{"echo", "say \"hi\"", ""}, line.command(0));
+        assertTrue(line.background());
+        assertEquals(CommandLine.Redirect.NONE, line.redirect());
+
+        assertFalse(line.parse("echo 'open"));
+        assertEquals("Syntax error: unterminated quote", line.error());
+        assertFalse(line.parse("cat a | | grep x"));
+        assertFalse(line.parse("echo a >"));
+        assertFalse(line.parse("echo a > b | grep a"));
+        assertTrue(line.parse("   ") && line.isEmpty());
+
+        // A quoted '|' is part of the pattern instead of splitting the line into a pipeline
+        Files.write(testDirectory.resolve("app.log"), List.of("ERROR a|b", "ERROR c"));
+        Output content = Output.capture();
+        commands = commands.withStreams(null, content);
+        assertTrue(line.parse("cat app.log | grep \"a|b\" > found.txt"));
+        Main.dispatch(line, commands, testDirectory);
+        assertEquals(List.of("ERROR a|b"), Files.readAllLines(testDirectory.resolve("found.txt")));
+    }
+
     /////////////////////////////////////////////////////////////
 
     @Test
@@ -254,11 +1004,11 @@ public class CommandsTest {
         commands.touch(s, testDirectory);
         assertTrue(Files.exists(testDirectory.resolve(s)));
 
-        ByteArrayOutputStream content = new ByteArrayOutputStream();
-        System.setOut(new PrintStream(content));
+        Output content = Output.capture();
+        commands = commands.withStreams(null, content);
 
         commands.touch(s, testDirectory); // Try to create again
-        assertTrue(content.toString().contains("File already exists"));
+        assertTrue(content.text().contains("File already exists"));
     }
 
     // Test case for removing a file
@@ -273,11 +1023,36 @@ public class CommandsTest {
     // Test case for removing a file that does not exist
     @Test
     void testRmCase2() {
-        ByteArrayOutputStream content = new ByteArrayOutputStream();
-        System.setOut(new PrintStream(content));
+        Output content = Output.capture();
+        commands = commands.withStreams(null, content);
 
         commands.rm("assdsa.txt", testDirectory); // File does not exist
-        assertTrue(content.toString().contains("File or directory does not exist"));
+        assertTrue(content.text().contains("File or directory does not exist"));
+    }
+
+    @Test
+    void testRmParallelDeletesTree() throws IOException {
+        for (int i = 0; i < 4; i++) {
+            Path dir = Files.createDirectories(testDirectory.resolve("cache/part" + i + "/nested"));
+            Files.write(dir.resolve("blob"), new byte[100]);
+        }
+
+        commands.rm(new String[]{"rm", "-p", "cache"}, testDirectory);
+        assertFalse(Files.exists(testDirectory.resolve("cache")), "The whole tree should be removed");
+    }
+
+    @Test
+    void testRmDryRunKeepsFiles() throws IOException {
+        Path dir = Files.createDirectories(testDirectory.resolve("cache/sub"));
+        Files.write(dir.resolve("a"), new byte[1024]);
+        Files.write(dir.resolve("b"), new byte[512]);
+
+        Output content = Output.capture();
+        commands = commands.withStreams(null, content);
+        commands.rm(new String[]{"rm", "--dry-run", "cache"}, testDirectory);
+
+        assertTrue(Files.exists(dir.resolve("a")), "A dry run must not delete anything");
+        assertTrue(content.text().contains("Would remove 2 files and 2 directories, freeing 1.5 KB"));
     }
 
     // Test case for redirecting output to a file using >
@@ -313,10 +1088,99 @@ public class CommandsTest {
     public void testRedirectCase3() throws IOException {
         String input = "bhgh aaaa >> testFile.txt";
 
-        ByteArrayOutputStream content = new ByteArrayOutputStream();
-        System.setOut(new PrintStream(content));
+        Output content = Output.capture();
+        commands = commands.withStreams(null, content);
         commands.redirect(input);
-        assertTrue(content.toString().contains("Unknown command:"));
+        assertTrue(content.text().contains("Unknown command:"));
+    }
+
+    @Test
+    void testDirectoryCacheChecksOldListingsForRemovedDirectories() throws IOException {
+        Path dir = Files.createDirectories(testDirectory.resolve("gone"));
+        // Trusts a listing for no time at all, as once the interval has passed without a watch event
+        DirectoryCache cache = new DirectoryCache(DirectoryCache.DEFAULT_MAX_BYTES, DirectoryCache.DEFAULT_MAX_DIRECTORIES, 0);
+        cache.list(dir);
+        assertTrue(cache.isDirectory(dir));
+
+        Files.delete(dir);
+        assertFalse(cache.isDirectory(dir), "A cached listing does not vouch for a directory that is gone");
+        assertTrue(cache.stats().startsWith("directories: 0/"), cache.stats());
+    }
+
+    @Test
+    void testQueuedRedirectsAreBatchedAndDrained() throws Exception {
+        Output content = Output.capture();
+        Commands pooled = new Commands(null, content);
+        pooled.enableWriterPool();
+        try {
+            pooled.redirect("echo first > log.txt", testDirectory);
+            for (int i = 0; i < 1000; i++) {
+                pooled.redirect("echo line " + i + " >> log.txt", testDirectory);
+            }
+            pooled.flushRedirects();
+            List<String> lines = Files.readAllLines(testDirectory.resolve("log.txt"));
+            assertEquals(1001, lines.size());
+            assertEquals("first", lines.get(0));
+            assertEquals("line 999", lines.get(1000));
+
+            // > truncates in order with the appends queued before it
+            pooled.redirect("echo again > log.txt", testDirectory);
+            pooled.sync();
+            assertEquals(List.of("again"), Files.readAllLines(testDirectory.resolve("log.txt")));
+
+            content.reset();
+            pooled.redirect("echo lost > missing/log.txt", testDirectory);
+            assertTrue(content.text().startsWith("Error writing to file"));
+
+            // A write that fails in the writer is reported at the next check, and only written bytes count
+            Files.createDirectories(testDirectory.resolve("dir"));
+            content.reset();
+            pooled.redirect("echo lost > dir", testDirectory);
+            assertEquals("Message queued for file: dir", content.text().trim());
+            for (int i = 0; i < 100 && !content.text().contains("redirect: "); i++) {
+                Thread.sleep(20);
+                pooled.reportRedirectErrors();
+            }
+            assertTrue(content.text().contains("redirect: Error writing to file"), content.text());
+            long lineBytes = System.lineSeparator().length();
+            long expected = "first".length() + lineBytes + "again".length() + lineBytes;
+            for (int i = 0; i < 1000; i++) {
+                expected += ("line " + i).length() + lineBytes;
+            }
+            assertTrue(pooled.metrics().json().contains("\"bytesWritten\": " + expected + ", \"filesTouched\": 1002,"),
+                    pooled.metrics().json());
+        } finally {
+            pooled.closeWriters();
+        }
+    }
+
+    @Test
+    void testScriptValidationReportsEveryBadLine() throws IOException {
+        Path file = testDirectory.resolve("plan.txt");
+        Files.write(file, List.of("# comment", "mkdir out", "", "frobnicate x", "cat a | nope", "ls > listing.txt", "cd out | ls"));
+
+        Script script = Script.parse(file);
+        assertEquals(5, script.size(), "Comments and blank lines are not part of the plan");
+        assertEquals(List.of(
+                "plan.txt:4: Unknown command 'frobnicate'",
+                "plan.txt:5: Unknown command 'nope'",
+                "plan.txt:7: cd cannot run in a pipeline"), script.validate());
+    }
+
+    @Test
+    void testMetricsRecordBytesAndFilesPerCommand() throws IOException {
+        Files.write(testDirectory.resolve("data.bin"), new byte[4096]);
+        Metrics metrics = commands.metrics();
+
+        Metrics.Sample sample = metrics.begin("cat");
+        commands.withStreams(null, new PrintStream(OutputStream.nullOutputStream()))
+                .cat(new String[]{"cat", "data.bin"}, testDirectory);
+        metrics.end(sample);
+
+        assertSame(sample, metrics.lastSample());
+        assertEquals(4096, sample.bytesRead);
+        assertEquals(1, sample.filesTouched);
+        assertTrue(metrics.json().contains("\"cat\": {\"count\": 1"), metrics.json());
     }
 
     @Test
@@ -328,12 +1192,105 @@ public class CommandsTest {
         commands.ls(testDirectory);
     }
 
+    @Test
+    void testLsServesRepeatListingsFromCache() throws IOException {
+        Files.createFile(testDirectory.resolve("first.txt"));
+        PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+        Commands session = commands.withStreams(null, quiet);
+
+        session.ls(testDirectory);
+        session.ls(testDirectory);
+
+        Output content = Output.capture();
+        Commands capture = commands.withStreams(null, content);
+        capture.touch("second.txt", testDirectory);
+        capture.ls(testDirectory);
+        assertTrue(content.text().contains("second.txt"), "A file created in-session must show up immediately");
+
+        content.reset();
+        capture.cache(new String[]{"cache", "stats"});
+        assertTrue(content.text().contains("hits: 1, misses: 2"), content.text());
+    }
+
+    @Test
+    void testLsSortsBySizeAndTimeWithDetails() throws IOException {
+        Files.write(testDirectory.resolve("b.txt"), new byte[300]);
+        Files.write(testDirectory.resolve("a.txt"), new byte[20]);
+        Files.write(testDirectory.resolve("c.txt"), new byte[100_000]);
+        Files.createDirectory(testDirectory.resolve("dir"));
+        Files.createFile(testDirectory.resolve(".hidden"));
+        long now = System.currentTimeMillis();
+        Files.setLastModifiedTime(testDirectory.resolve("c.txt"), FileTime.fromMillis(now - 3_000_000));
+        Files.setLastModifiedTime(testDirectory.resolve("a.txt"), FileTime.fromMillis(now - 2_000_000));
+        Files.setLastModifiedTime(testDirectory.resolve("b.txt"), FileTime.fromMillis(now - 1_000_000));
+        Files.setLastModifiedTime(testDirectory.resolve("dir"), FileTime.fromMillis(now - 4_000_000));
+
+        Output content = Output.capture();
+        Commands listing = new Commands(null, content);
+        listing.ls(new String[]{"ls"}, testDirectory);
+        assertEquals(List.of("a.txt", "b.txt", "c.txt", "dir/"), content.text().lines().toList());
+
+        content.reset();
+        listing.ls(new String[]{"ls", "-t"}, testDirectory);
+        assertEquals(List.of("b.txt", "a.txt", "c.txt", "dir/"), content.text().lines().toList());
+
+        content.reset();
+        listing.ls(new String[]{"ls", "-Sr", "."}, testDirectory);
+        List<String> bySize = content.text().lines().toList();
+        assertEquals("c.txt", bySize.get(bySize.size() - 1));
+        assertTrue(bySize.indexOf("a.txt") < bySize.indexOf("b.txt"), bySize.toString());
+
+        content.reset();
+        listing.ls(new String[]{"ls", "-la"}, testDirectory);
+        List<String> lines = content.text().lines().toList();
+        assertEquals(5, lines.size());
+        assertTrue(lines.get(0).endsWith(" .hidden"), lines.get(0));
+        assertTrue(lines.get(3).matches("- 100000 \\d{4}-\\d\\d-\\d\\d \\d\\d:\\d\\d c\\.txt"), lines.get(3));
+        assertTrue(lines.get(1).matches("-     20 .* a\\.txt"), lines.get(1));
+        assertTrue(lines.get(4).startsWith("d "), lines.get(4));
+
+        content.reset();
+        listing.ls(new String[]{"ls", "-x"}, testDirectory);
+        assertEquals("ls: Unknown option -x", content.text().trim());
+    }
+
     @Test
     void testLsEmptyDirectory() throws IOException {
         String[] lsCommand = {"ls"};
         commands.ls(testDirectory);
     }
 
+    @Test
+    void testLsrCountsEntriesWithDepthLimit() throws IOException {
+        Files.createDirectories(testDirectory.resolve("a/b/c"));
+        Files.createFile(testDirectory.resolve("a/one.txt"));
+        Files.createFile(testDirectory.resolve("a/b/c/deep.txt"));
+
+        Output content = Output.capture();
+        commands = commands.withStreams(null, content);
+        commands.lsr(new String[]{"ls-r", "--depth", "2", "--count"}, testDirectory);
+        List<String> lines = content.text().lines().toList();
+        assertFalse(lines.stream().anyMatch(line -> line.contains("deep.txt")), "Entries below the depth limit are skipped");
+        assertEquals("3 directories, 1 files", lines.get(lines.size() - 1));
+    }
+
+    @Test
+    void testLsrUnorderedListsSameEntries() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            Path dir = Files.createDirectories(testDirectory.resolve("dir" + i + "/sub"));
+            Files.createFile(dir.resolve("file" + i));
+        }
+
+        Output ordered = Output.capture();
+        commands = commands.withStreams(null, ordered);
+        commands.lsr(new String[]{"ls-r"}, testDirectory);
+        Output unordered = Output.capture();
+        commands = commands.withStreams(null, unordered);
+        commands.lsr(new String[]{"ls-r", "-u"}, testDirectory);
+
+        assertEquals(ordered.text().lines().sorted().toList(), unordered.text().lines().sorted().toList());
+    }
+
     @Test
     void testCatDisplaysFileContent() throws IOException {
         String[] catCommand = {"cat", "file.txt"};
@@ -350,6 +1307,31 @@ public class CommandsTest {
         commands.cat(catCommand, testDirectory);
     }
 
+    @Test
+    void testCatConcatenatesFilesAndRanges() throws IOException {
+        Files.writeString(testDirectory.resolve("a.txt"), "0123456789");
+        Files.writeString(testDirectory.resolve("b.txt"), "abcdefghij");
+
+        Output content = Output.capture();
+        commands = commands.withStreams(null, content);
+        commands.cat(new String[]{"cat", "a.txt", "b.txt"}, testDirectory);
+        assertEquals("0123456789abcdefghij", content.text());
+
+        content.reset();
+        commands.cat(new String[]{"cat", "--range", "2:3", "a.txt", "b.txt"}, testDirectory);
+        assertEquals("234cde", content.text());
+    }
+
+    @Test
+    void testCatRedirectCopiesIntoFile() throws IOException {
+        Files.writeString(testDirectory.resolve("a.txt"), "first\n");
+        Files.writeString(testDirectory.resolve("b.txt"), "second\n");
+
+        commands.redirect("cat a.txt > out.txt", testDirectory);
+        commands.redirect("cat b.txt >> out.txt", testDirectory);
+        assertEquals("first\nsecond\n", Files.readString(testDirectory.resolve("out.txt")));
+    }
+
     @Test
     void testCatNonexistentFile() {
         String[] catCommand = {"cat", "nonexistentFile.txt"};
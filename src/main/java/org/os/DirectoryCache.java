@@ -0,0 +1,359 @@
+package org.os;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session cache of directory listings with the attributes of every entry.
+ * Entries are evicted least-recently-used once the estimated memory or directory count goes over its cap.
+ * A WatchService drops a listing as soon as anything inside the directory changes; as a safety net for
+ * filesystems that do not deliver watch events (NFS, SMB), a hit is also checked against the directory's mtime,
+ * which costs one stat instead of one per entry. {@link #isDirectory} trusts a cached listing without any stat
+ * only for a short while after the directory was last seen on disk.
+ */
+public class DirectoryCache {
+
+    static final long DEFAULT_MAX_BYTES = 32L << 20;
+    static final int DEFAULT_MAX_DIRECTORIES = 10_000;
+    // How long isDirectory takes a cached listing's word for it, in case a watch event was missed or dropped
+    static final long DEFAULT_TRUST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /** The entries of one directory in parallel primitive arrays, in directory order. */
+    public static final class Listing {
+        static final byte DIRECTORY = 1; // set for directories and for links that point to one
+        static final byte SYMLINK = 2;
+
+        final Path dir;
+        final long dirModified;
+        final String[] names;
+        final byte[] flags;
+        final long[] sizes;
+        final long[] modified;
+        final long memory;
+        // System.nanoTime() when the directory was last seen on disk; guarded by the cache
+        long seen = System.nanoTime();
+
+        Listing(Path dir, long dirModified, String[] names, byte[] flags, long[] sizes, long[] modified) {
+            this.dir = dir;
+            this.dirModified = dirModified;
+            this.names = names;
+            this.flags = flags;
+            this.sizes = sizes;
+            this.modified = modified;
+            long bytes = 96;
+            for (String name : names) {
+                // String header and array, plus one slot in each of the four arrays
+                bytes += 56 + 2L * name.length() + 8 + 1 + 8 + 8;
+            }
+            this.memory = bytes;
+        }
+
+        public int size() {
+            return names.length;
+        }
+
+        public boolean isDirectory(int i) {
+            return (flags[i] & DIRECTORY) != 0;
+        }
+
+        public boolean isSymlink(int i) {
+            return (flags[i] & SYMLINK) != 0;
+        }
+
+        public boolean isHidden(int i) {
+            return names[i].startsWith(".");
+        }
+
+        static final int BY_NAME = 0;
+        static final int BY_SIZE = 1; // largest first
+        static final int BY_TIME = 2; // newest first
+
+        /**
+         * Entry indexes in the given order, ties broken by name. The arrays are shared through the cache and
+         * never reordered; only the returned index array is sorted, in place.
+         */
+        public int[] order(int key, boolean reverse) {
+            int[] order = new int[names.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            sort(order, 0, order.length, key);
+            if (reverse) {
+                // Names are unique, so the order is total and reversing it is the same as sorting backwards
+                for (int i = 0, j = order.length - 1; i < j; i++, j--) {
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                }
+            }
+            return order;
+        }
+
+        private int compare(int key, int a, int b) {
+            int c = key == BY_SIZE ? Long.compare(sizes[b], sizes[a])
+                    : key == BY_TIME ? Long.compare(modified[b], modified[a]) : 0;
+            return c != 0 ? c : names[a].compareTo(names[b]);
+        }
+
+        // Quicksort on the index array with a median-of-three pivot, recursing into the smaller half only
+        private void sort(int[] order, int from, int to, int key) {
+            while (to - from > 16) {
+                int first = order[from];
+                int middle = order[(from + to) >>> 1];
+                int last = order[to - 1];
+                int pivot = compare(key, first, middle) < 0
+                        ? (compare(key, middle, last) < 0 ? middle : compare(key, first, last) < 0 ? last : first)
+                        : (compare(key, first, last) < 0 ? first : compare(key, middle, last) < 0 ? last : middle);
+                int i = from;
+                int j = to - 1;
+                while (i <= j) {
+                    while (compare(key, order[i], pivot) < 0) {
+                        i++;
+                    }
+                    while (compare(key, order[j], pivot) > 0) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        int swap = order[i];
+                        order[i++] = order[j];
+                        order[j--] = swap;
+                    }
+                }
+                if (j - from < to - i) {
+                    sort(order, from, j + 1, key);
+                    from = i;
+                } else {
+                    sort(order, i, to, key);
+                    to = j + 1;
+                }
+            }
+            for (int i = from + 1; i < to; i++) {
+                int entry = order[i];
+                int j = i - 1;
+                while (j >= from && compare(key, order[j], entry) > 0) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = entry;
+            }
+        }
+    }
+
+    private final long maxBytes;
+    private final int maxDirectories;
+    private final long trustNanos;
+    private final LinkedHashMap<Path, Listing> listings = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<Path, WatchKey> watches = new LinkedHashMap<>();
+    private WatchService watcher;
+    private boolean watcherUnavailable;
+    private long memory;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public DirectoryCache() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MAX_DIRECTORIES);
+    }
+
+    public DirectoryCache(long maxBytes, int maxDirectories) {
+        this(maxBytes, maxDirectories, DEFAULT_TRUST_NANOS);
+    }
+
+    /** @param trustNanos how long after a directory was last seen on disk isDirectory answers from the cache */
+    public DirectoryCache(long maxBytes, int maxDirectories, long trustNanos) {
+        this.maxBytes = maxBytes;
+        this.maxDirectories = maxDirectories;
+        this.trustNanos = trustNanos;
+    }
+
+    /** Returns the listing of dir, reading it from disk only when it is not cached or has changed. */
+    public Listing list(Path dir) throws IOException {
+        Path key = dir.toAbsolutePath().normalize();
+        long dirModified = Files.getLastModifiedTime(key).toMillis();
+        synchronized (this) {
+            Listing cached = listings.get(key);
+            if (cached != null && cached.dirModified == dirModified) {
+                hits++;
+                cached.seen = System.nanoTime();
+                return cached;
+            }
+            misses++;
+        }
+        Listing fresh = read(key, dirModified);
+        synchronized (this) {
+            Listing previous = listings.put(key, fresh);
+            if (previous != null) {
+                memory -= previous.memory;
+            }
+            memory += fresh.memory;
+            watch(key);
+            evict();
+        }
+        return fresh;
+    }
+
+    /**
+     * True when dir is a directory. A listing whose directory was seen on disk within the trust interval answers
+     * without touching the disk; an older one is checked, and dropped if the directory is gone.
+     */
+    public boolean isDirectory(Path dir) {
+        Path key = dir.toAbsolutePath().normalize();
+        synchronized (this) {
+            Listing cached = listings.get(key);
+            if (cached != null && System.nanoTime() - cached.seen < trustNanos) {
+                hits++;
+                return true;
+            }
+        }
+        boolean exists = Files.isDirectory(key);
+        synchronized (this) {
+            Listing cached = listings.get(key);
+            if (cached != null && exists) {
+                cached.seen = System.nanoTime();
+            } else if (cached != null) {
+                invalidate(key); // removed without a watch event reaching us
+            }
+        }
+        return exists;
+    }
+
+    /** Drops the cached listing of dir, e.g. after this process created or removed something in it. */
+    public synchronized void invalidate(Path dir) {
+        Path key = dir.toAbsolutePath().normalize();
+        Listing removed = listings.remove(key);
+        if (removed != null) {
+            memory -= removed.memory;
+            invalidations++;
+        }
+        unwatch(key);
+    }
+
+    public synchronized void clear() {
+        listings.clear();
+        memory = 0;
+        for (WatchKey watchKey : watches.values()) {
+            watchKey.cancel();
+        }
+        watches.clear();
+    }
+
+    public synchronized String stats() {
+        long lookups = hits + misses;
+        double hitRate = lookups == 0 ? 0 : 100.0 * hits / lookups;
+        return String.format(Locale.ROOT,
+                "directories: %d/%d, memory: %s/%s, hits: %d, misses: %d, hit rate: %.1f%%, evictions: %d, invalidations: %d, watching: %s",
+                listings.size(), maxDirectories, Commands.humanSize(memory), Commands.humanSize(maxBytes),
+                hits, misses, hitRate, evictions, invalidations,
+                watcherUnavailable ? "unavailable" : watches.size() + " directories");
+    }
+
+    private static Listing read(Path dir, long dirModified) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<BasicFileAttributes> attributes = new ArrayList<>();
+        List<Path> links = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    continue; // removed while we were listing
+                }
+                names.add(path.getFileName().toString());
+                attributes.add(attrs);
+                links.add(attrs.isSymbolicLink() ? path : null);
+            }
+        }
+        int n = names.size();
+        byte[] flags = new byte[n];
+        long[] sizes = new long[n];
+        long[] modified = new long[n];
+        for (int i = 0; i < n; i++) {
+            BasicFileAttributes attrs = attributes.get(i);
+            if (attrs.isSymbolicLink()) {
+                flags[i] |= Listing.SYMLINK;
+                if (Files.isDirectory(links.get(i))) {
+                    flags[i] |= Listing.DIRECTORY;
+                }
+            } else if (attrs.isDirectory()) {
+                flags[i] |= Listing.DIRECTORY;
+            }
+            sizes[i] = attrs.size();
+            modified[i] = attrs.lastModifiedTime().toMillis();
+        }
+        return new Listing(dir, dirModified, names.toArray(new String[0]), flags, sizes, modified);
+    }
+
+    // Caller holds the lock
+    private void evict() {
+        Iterator<Map.Entry<Path, Listing>> eldest = listings.entrySet().iterator();
+        while ((memory > maxBytes || listings.size() > maxDirectories) && eldest.hasNext()) {
+            Map.Entry<Path, Listing> entry = eldest.next();
+            eldest.remove();
+            memory -= entry.getValue().memory;
+            unwatch(entry.getKey());
+            evictions++;
+        }
+    }
+
+    // Caller holds the lock
+    private void watch(Path dir) {
+        if (watcherUnavailable || watches.containsKey(dir)) {
+            return;
+        }
+        try {
+            if (watcher == null) {
+                watcher = FileSystems.getDefault().newWatchService();
+                Thread thread = new Thread(this::processEvents, "directory-cache-watcher");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            watches.put(dir, dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+        } catch (IOException | UnsupportedOperationException e) {
+            // Out of watch handles or not supported here; the mtime check still keeps hits correct
+            if (watcher == null) {
+                watcherUnavailable = true;
+            }
+        }
+    }
+
+    // Caller holds the lock
+    private void unwatch(Path dir) {
+        WatchKey watchKey = watches.remove(dir);
+        if (watchKey != null) {
+            watchKey.cancel();
+        }
+    }
+
+    private void processEvents() {
+        while (true) {
+            WatchKey watchKey;
+            try {
+                watchKey = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            watchKey.pollEvents();
+            invalidate((Path) watchKey.watchable());
+            watchKey.reset();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package org.os;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * du: the apparent size of every directory under a root, summed bottom-up with one fork-join task per
+ * directory on the shared walker pool. Each entry's attributes are read once, while its directory is listed.
+ *
+ * <p>What a directory holds directly (the bytes and count of its files, and the names of its subdirectories)
+ * is remembered for the session together with the directory's mtime. A later run only stats each directory,
+ * and lists again just those whose mtime changed, so a repeat query costs one stat per directory instead of
+ * one per file. Adding, removing or renaming an entry changes its directory's mtime; rewriting a file in place
+ * does not, which is what {@code --fresh} is for.
+ */
+public class DiskUsage {
+
+    // Directories remembered at most; past this, new directories are measured but not cached
+    static final int MAX_CACHED_DIRECTORIES = 1_000_000;
+
+    /** What one directory holds directly, as of its mtime. */
+    static final class Summary {
+        final long modified;
+        // The directory's own size plus the size of every non-directory entry in it
+        final long bytes;
+        final long files;
+        final String[] directories;
+
+        Summary(long modified, long bytes, long files, String[] directories) {
+            this.modified = modified;
+            this.bytes = bytes;
+            this.files = files;
+            this.directories = directories;
+        }
+    }
+
+    /** One directory of a measured tree with the totals of everything below it. */
+    public static final class Node {
+        final Path path;
+        final String name;
+        final int depth;
+        long bytes;
+        long files;
+        long directories;
+        // Subdirectories by name, kept only down to the depth the caller asked for
+        List<Node> children = List.of();
+
+        Node(Path path, String name, int depth) {
+            this.path = path;
+            this.name = name;
+            this.depth = depth;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+    }
+
+    /** Outcome of one run. */
+    public static final class Report {
+        public final Node root;
+        // The largest directories below the root, largest first
+        public final List<Node> largest;
+        final long cached;
+        final long listed;
+        final long failures;
+        final String firstFailure;
+        final long elapsedNanos;
+
+        Report(Node root, List<Node> largest, long cached, long listed, long failures, String firstFailure, long elapsedNanos) {
+            this.root = root;
+            this.largest = largest;
+            this.cached = cached;
+            this.listed = listed;
+            this.failures = failures;
+            this.firstFailure = firstFailure;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /** e.g. "1200 files, 30 directories, 4.1 MB in 12 ms (29 of 31 directories from cache)" */
+        public String summary() {
+            return String.format(Locale.ROOT, "%d files, %d directories, %s in %d ms (%d of %d directories from cache)",
+                    root.files, root.directories, Commands.humanSize(root.bytes), elapsedNanos / 1_000_000,
+                    cached, cached + listed);
+        }
+    }
+
+    private final Map<Path, Summary> cache = new ConcurrentHashMap<>();
+
+    public Report measure(Path root, String name, int keepDepth, int top, boolean fresh) throws IOException {
+        return measure(root, name, keepDepth, top, fresh, () -> false);
+    }
+
+    /**
+     * Measures the tree under root.
+     *
+     * @param keepDepth directories down to this depth keep their children in the report
+     * @param top how many of the largest directories to report
+     * @param fresh list every directory again instead of trusting cached summaries
+     * @param stop ends the walk early once it returns true; the totals are then partial
+     */
+    public Report measure(Path root, String name, int keepDepth, int top, boolean fresh, BooleanSupplier stop) throws IOException {
+        long start = System.nanoTime();
+        Path key = root.toAbsolutePath().normalize();
+        BasicFileAttributes attrs = Files.readAttributes(key, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        Node node = new Node(key, name, 0);
+        Run run = new Run(keepDepth, top, fresh, stop);
+        if (attrs.isDirectory()) {
+            TreeWalker.POOL.invoke(new DirectoryTask(node, run));
+        } else {
+            node.bytes = attrs.size();
+            node.files = 1;
+        }
+        List<Node> largest = new ArrayList<>(run.largest);
+        largest.sort(BY_SIZE.reversed());
+        return new Report(node, largest, run.cached.sum(), run.listed.sum(), run.failures.sum(), run.firstFailure,
+                System.nanoTime() - start);
+    }
+
+    public int cachedDirectories() {
+        return cache.size();
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    private static final Comparator<Node> BY_SIZE = Comparator.comparingLong(Node::bytes);
+
+    // State of one measure() call, shared by its tasks
+    private static final class Run {
+        final int keepDepth;
+        final int top;
+        final boolean fresh;
+        final BooleanSupplier stop;
+        // Min-heap holding the largest directories seen so far; guarded by itself
+        final PriorityQueue<Node> largest = new PriorityQueue<>(BY_SIZE);
+        final LongAdder cached = new LongAdder();
+        final LongAdder listed = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        volatile String firstFailure;
+
+        Run(int keepDepth, int top, boolean fresh, BooleanSupplier stop) {
+            this.keepDepth = keepDepth;
+            this.top = top;
+            this.fresh = fresh;
+            this.stop = stop;
+        }
+
+        void offer(Node node) {
+            if (top <= 0 || node.depth == 0) {
+                return;
+            }
+            synchronized (largest) {
+                if (largest.size() < top) {
+                    largest.add(node);
+                } else if (node.bytes > largest.peek().bytes) {
+                    largest.poll();
+                    largest.add(node);
+                }
+            }
+        }
+
+        void fail(Path dir, IOException e) {
+            failures.increment();
+            if (firstFailure == null) {
+                firstFailure = dir + ": " + e.getMessage();
+            }
+        }
+    }
+
+    private Summary summary(Path dir, Run run) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(dir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        long modified = attrs.lastModifiedTime().toMillis();
+        Summary cached = cache.get(dir);
+        if (!run.fresh && cached != null && cached.modified == modified) {
+            run.cached.increment();
+            return cached;
+        }
+        run.listed.increment();
+        long bytes = attrs.size();
+        long files = 0;
+        List<String> directories = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                BasicFileAttributes entry;
+                try {
+                    entry = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    continue; // removed while we were listing
+                }
+                if (entry.isDirectory()) {
+                    directories.add(path.getFileName().toString());
+                } else {
+                    bytes += entry.size();
+                    files++;
+                }
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause(); // unreadable part way through, as TreeWalker.list reports it
+        }
+        directories.sort(null);
+        Summary fresh = new Summary(modified, bytes, files, directories.toArray(new String[0]));
+        if (cached != null || cache.size() < MAX_CACHED_DIRECTORIES) {
+            cache.put(dir, fresh);
+        }
+        return fresh;
+    }
+
+    private final class DirectoryTask extends RecursiveAction {
+        private final Node node;
+        private final Run run;
+
+        DirectoryTask(Node node, Run run) {
+            this.node = node;
+            this.run = run;
+        }
+
+        @Override
+        protected void compute() {
+            if (run.stop.getAsBoolean()) {
+                return;
+            }
+            Summary summary;
+            try {
+                summary = summary(node.path, run);
+            } catch (IOException e) {
+                run.fail(node.path, e);
+                return;
+            }
+            node.bytes = summary.bytes;
+            node.files = summary.files;
+            List<DirectoryTask> subtasks = new ArrayList<>(summary.directories.length);
+            for (String name : summary.directories) {
+                subtasks.add(new DirectoryTask(new Node(node.path.resolve(name), name, node.depth + 1), run));
+            }
+            invokeAll(subtasks);
+
+            List<Node> children = new ArrayList<>(subtasks.size());
+            for (DirectoryTask subtask : subtasks) {
+                Node child = subtask.node;
+                node.bytes += child.bytes;
+                node.files += child.files;
+                node.directories += 1 + child.directories;
+                children.add(child);
+            }
+            if (node.depth < run.keepDepth) {
+                node.children = children;
+            }
+            run.offer(node);
+        }
+    }
+}
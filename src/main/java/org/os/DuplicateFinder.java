@@ -0,0 +1,383 @@
+package org.os;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.zip.CRC32C;
+
+/**
+ * dupes: files under a root with identical content, found in stages that each look at fewer files.
+ * The walk reads every file's size; only files sharing a size with another file get the CRC32C of their
+ * first and last block; only files that still collide are hashed in full with SHA-256. Hashing runs on a
+ * bounded pool, and full hashes read the file through memory-mapped windows.
+ *
+ * <p>Hashes are remembered for the session together with the file's size and mtime, so a repeat run only
+ * reads files that changed. Hard links to one file are counted once, since they take no extra space.
+ */
+public class DuplicateFinder {
+
+    // Bytes read from each end of a file for the partial hash
+    static final int PARTIAL_BLOCK = 4096;
+    // Largest region mapped at once for a full hash
+    static final long MAP_WINDOW = 64L * 1024 * 1024;
+    // Files remembered at most; past this, new files are hashed but not cached
+    static final int MAX_CACHED_FILES = 1_000_000;
+    // Hashing is mostly reading, so one thread per core keeps the disk busy without thrashing it
+    static final int HASH_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /** Hashes known for one file, as of its size and mtime; the full hash is null until needed. */
+    static final class Hashes {
+        final long size;
+        final long modified;
+        final long partial;
+        final byte[] full;
+
+        Hashes(long size, long modified, long partial, byte[] full) {
+            this.size = size;
+            this.modified = modified;
+            this.partial = partial;
+            this.full = full;
+        }
+    }
+
+    /** Files with the same content, in path order. */
+    public static final class Group {
+        public final long size;
+        public final List<Path> paths;
+
+        Group(long size, List<Path> paths) {
+            this.size = size;
+            this.paths = paths;
+        }
+
+        /** Space taken by every copy but one. */
+        public long wasted() {
+            return size * (paths.size() - 1);
+        }
+    }
+
+    /** Outcome of one run. */
+    public static final class Report {
+        // Largest waste first
+        public final List<Group> groups;
+        final long scanned;
+        final long sameSize;
+        final long partialHashed;
+        final long fullHashed;
+        final long cached;
+        final long bytesHashed;
+        final long failures;
+        final String firstFailure;
+        final long elapsedNanos;
+
+        Report(List<Group> groups, long scanned, long sameSize, long partialHashed, long fullHashed, long cached,
+               long bytesHashed, long failures, String firstFailure, long elapsedNanos) {
+            this.groups = groups;
+            this.scanned = scanned;
+            this.sameSize = sameSize;
+            this.partialHashed = partialHashed;
+            this.fullHashed = fullHashed;
+            this.cached = cached;
+            this.bytesHashed = bytesHashed;
+            this.failures = failures;
+            this.firstFailure = firstFailure;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long wasted() {
+            return groups.stream().mapToLong(Group::wasted).sum();
+        }
+
+        /** e.g. "3 groups, 5 redundant files, 12 MB reclaimable in 40 ms (900 files, 20 same size, 6 hashed in full, 2 from cache)" */
+        public String summary() {
+            long redundant = groups.stream().mapToLong(group -> group.paths.size() - 1).sum();
+            return String.format(Locale.ROOT, "%d groups, %d redundant files, %s reclaimable in %d ms "
+                            + "(%d files, %d same size, %d hashed in full, %d from cache)",
+                    groups.size(), redundant, Commands.humanSize(wasted()), elapsedNanos / 1_000_000,
+                    scanned, sameSize, fullHashed, cached);
+        }
+    }
+
+    private final Map<Path, Hashes> cache = new ConcurrentHashMap<>();
+
+    public Report find(Path root, boolean fresh) throws IOException {
+        return find(root, fresh, () -> false);
+    }
+
+    /**
+     * Finds the duplicate files under root.
+     *
+     * @param fresh hash every candidate again instead of trusting cached hashes
+     * @param stop ends the run early once it returns true; files not hashed by then are left out of every group
+     */
+    public Report find(Path root, boolean fresh, BooleanSupplier stop) throws IOException {
+        long start = System.nanoTime();
+        Run run = new Run(fresh, stop);
+
+        // Stage 1: one walk, grouping regular files by size
+        ConcurrentLinkedQueue<Candidate> found = new ConcurrentLinkedQueue<>();
+        new TreeWalker().stopWhen(stop).walkParallel(root.toAbsolutePath().normalize(), new TreeWalker.Visitor() {
+            @Override
+            public void visit(Path path, BasicFileAttributes attrs, int depth) {
+                // Empty files are all alike and waste nothing
+                if (attrs.isRegularFile() && attrs.size() > 0) {
+                    found.add(new Candidate(path, attrs));
+                }
+            }
+
+            @Override
+            public void failed(Path dir, IOException e) {
+                run.fail(dir, e);
+            }
+        });
+        Map<Long, List<Candidate>> bySize = new HashMap<>();
+        for (Candidate candidate : found) {
+            bySize.computeIfAbsent(candidate.size, size -> new ArrayList<>()).add(candidate);
+        }
+        List<List<Candidate>> groups = new ArrayList<>();
+        long sameSize = 0;
+        for (List<Candidate> group : bySize.values()) {
+            group = distinctFiles(group);
+            if (group.size() > 1) {
+                groups.add(group);
+                sameSize += group.size();
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(HASH_THREADS);
+        try {
+            // Stage 2: both ends of every file that shares its size
+            hashAll(groups, candidate -> partialHash(candidate, run), pool);
+            groups = regroup(groups, candidate -> candidate.partial);
+            // Stage 3: the whole file, only where the ends matched too
+            hashAll(groups, candidate -> fullHash(candidate, run), pool);
+            groups = regroup(groups, candidate -> HexFormat.of().formatHex(candidate.full));
+        } finally {
+            pool.shutdown();
+        }
+
+        List<Group> duplicates = new ArrayList<>(groups.size());
+        for (List<Candidate> group : groups) {
+            List<Path> paths = new ArrayList<>(group.size());
+            for (Candidate candidate : group) {
+                paths.add(candidate.path);
+            }
+            paths.sort(null);
+            duplicates.add(new Group(group.get(0).size, paths));
+        }
+        duplicates.sort(Comparator.comparingLong(Group::wasted).reversed()
+                .thenComparing(group -> group.paths.get(0)));
+        return new Report(duplicates, found.size(), sameSize, run.partialHashed.sum(), run.fullHashed.sum(),
+                run.cached.sum(), run.bytesHashed.sum(), run.failures.sum(), run.firstFailure, System.nanoTime() - start);
+    }
+
+    public int cachedFiles() {
+        return cache.size();
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    // A file under consideration; the hashes are filled in by the stage that needs them
+    private static final class Candidate {
+        final Path path;
+        final long size;
+        final long modified;
+        final Object fileKey;
+        long partial;
+        byte[] full;
+        boolean failed;
+
+        Candidate(Path path, BasicFileAttributes attrs) {
+            this.path = path;
+            this.size = attrs.size();
+            this.modified = attrs.lastModifiedTime().toMillis();
+            this.fileKey = attrs.fileKey();
+        }
+    }
+
+    // State of one find() call, shared by the hashing threads
+    private static final class Run {
+        final boolean fresh;
+        final BooleanSupplier stop;
+        final LongAdder partialHashed = new LongAdder();
+        final LongAdder fullHashed = new LongAdder();
+        final LongAdder cached = new LongAdder();
+        final LongAdder bytesHashed = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        volatile String firstFailure;
+
+        Run(boolean fresh, BooleanSupplier stop) {
+            this.fresh = fresh;
+            this.stop = stop;
+        }
+
+        void fail(Path path, IOException e) {
+            failures.increment();
+            if (firstFailure == null) {
+                firstFailure = path + ": " + e.getMessage();
+            }
+        }
+    }
+
+    private interface Stage {
+        void hash(Candidate candidate);
+    }
+
+    // Hard links share a file key; keep one path per underlying file
+    private static List<Candidate> distinctFiles(List<Candidate> group) {
+        if (group.size() < 2 || group.get(0).fileKey == null) {
+            return group;
+        }
+        Map<Object, Candidate> byKey = new HashMap<>();
+        for (Candidate candidate : group) {
+            byKey.merge(candidate.fileKey, candidate,
+                    (kept, other) -> kept.path.compareTo(other.path) <= 0 ? kept : other);
+        }
+        return byKey.size() == group.size() ? group : new ArrayList<>(byKey.values());
+    }
+
+    private static void hashAll(List<List<Candidate>> groups, Stage stage, ExecutorService pool) {
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (List<Candidate> group : groups) {
+            for (Candidate candidate : group) {
+                tasks.add(CompletableFuture.runAsync(() -> stage.hash(candidate), pool));
+            }
+        }
+        CompletableFuture.allOf(tasks.toArray(CompletableFuture<?>[]::new)).join();
+    }
+
+    // Splits every group by key, dropping files that could not be read and groups left with one file
+    private static List<List<Candidate>> regroup(List<List<Candidate>> groups, Function<Candidate, Object> key) {
+        List<List<Candidate>> result = new ArrayList<>();
+        for (List<Candidate> group : groups) {
+            Map<Object, List<Candidate>> split = new HashMap<>();
+            for (Candidate candidate : group) {
+                if (!candidate.failed) {
+                    split.computeIfAbsent(key.apply(candidate), k -> new ArrayList<>()).add(candidate);
+                }
+            }
+            for (List<Candidate> part : split.values()) {
+                if (part.size() > 1) {
+                    result.add(part);
+                }
+            }
+        }
+        return result;
+    }
+
+    // The cached hashes of a file, if it has not changed since they were taken
+    private Hashes cached(Candidate candidate, Run run) {
+        if (run.fresh) {
+            return null;
+        }
+        Hashes hashes = cache.get(candidate.path);
+        if (hashes == null || hashes.size != candidate.size || hashes.modified != candidate.modified) {
+            return null;
+        }
+        return hashes;
+    }
+
+    private void remember(Candidate candidate) {
+        Hashes hashes = new Hashes(candidate.size, candidate.modified, candidate.partial, candidate.full);
+        if (cache.containsKey(candidate.path) || cache.size() < MAX_CACHED_FILES) {
+            cache.put(candidate.path, hashes);
+        }
+    }
+
+    private void partialHash(Candidate candidate, Run run) {
+        if (run.stop.getAsBoolean()) {
+            candidate.failed = true; // never hashed, so it must not be grouped with anything
+            return;
+        }
+        Hashes hashes = cached(candidate, run);
+        if (hashes != null) {
+            run.cached.increment();
+            candidate.partial = hashes.partial;
+            candidate.full = hashes.full;
+            return;
+        }
+        // A few kilobytes cost about as much to read as to map, so a plain positional read will do
+        try (FileChannel channel = FileChannel.open(candidate.path, StandardOpenOption.READ)) {
+            ByteBuffer block = ByteBuffer.allocate(PARTIAL_BLOCK);
+            long head = crc(channel, 0, block);
+            long tail = candidate.size > PARTIAL_BLOCK ? crc(channel, Math.max(PARTIAL_BLOCK, candidate.size - PARTIAL_BLOCK), block) : 0;
+            candidate.partial = head << 32 | tail;
+            run.partialHashed.increment();
+            run.bytesHashed.add(Math.min(candidate.size, 2L * PARTIAL_BLOCK));
+            remember(candidate);
+        } catch (IOException e) {
+            candidate.failed = true;
+            run.fail(candidate.path, e);
+        }
+    }
+
+    private static long crc(FileChannel channel, long position, ByteBuffer block) throws IOException {
+        block.clear();
+        while (block.hasRemaining()) {
+            int read = channel.read(block, position + block.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        block.flip();
+        CRC32C crc = new CRC32C();
+        crc.update(block);
+        return crc.getValue();
+    }
+
+    private void fullHash(Candidate candidate, Run run) {
+        if (candidate.full != null) {
+            return; // came with the partial hash from the cache
+        }
+        if (run.stop.getAsBoolean()) {
+            candidate.failed = true;
+            return;
+        }
+        try {
+            candidate.full = contentHash(candidate.path);
+            run.fullHashed.increment();
+            run.bytesHashed.add(candidate.size);
+            remember(candidate);
+        } catch (IOException e) {
+            candidate.failed = true;
+            run.fail(candidate.path, e);
+        }
+    }
+
+    /** SHA-256 of a file's content, read through memory-mapped windows. */
+    static byte[] contentHash(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_WINDOW) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position));
+                digest.update(window);
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package org.os;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Copies files and directory trees, with sibling entries copied concurrently on a bounded pool, so a tree of
+ * many small files keeps several copies in flight. File contents go through {@link FileChannel#transferTo},
+ * which lets the kernel move the bytes (copy_file_range or sendfile on Linux) without bringing them into the
+ * Java heap; files of {@link #CHUNKED_THRESHOLD} or more are split into chunks copied in parallel, each through
+ * its own target channel. Symbolic links are recreated, not followed; modification times and POSIX permissions
+ * are carried over.
+ */
+public class FileCopier {
+
+    // Files at least this large are copied in CHUNK_SIZE pieces at the same time
+    static final long CHUNKED_THRESHOLD = 64L << 20;
+    static final long CHUNK_SIZE = 16L << 20;
+
+    private final boolean update;
+    private final Consumer<String> progress;
+    private BooleanSupplier stop = () -> false;
+
+    final LongAdder files = new LongAdder();
+    final LongAdder directories = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+    final LongAdder skipped = new LongAdder();
+    final LongAdder failures = new LongAdder();
+    private volatile String firstFailure;
+
+    public FileCopier(Consumer<String> progress) {
+        this(false, progress);
+    }
+
+    /**
+     * @param update skip files whose target already has the same size and modification time
+     */
+    public FileCopier(boolean update, Consumer<String> progress) {
+        this.update = update;
+        this.progress = progress;
+    }
+
+    /**
+     * Ends a copy early once stop returns true, checked before each entry and between transfers. A file cut
+     * short keeps the time it was written rather than the source's, so a later --update copies it again.
+     */
+    public FileCopier stopWhen(BooleanSupplier stop) {
+        this.stop = stop;
+        return this;
+    }
+
+    /**
+     * Copies {@code source} to {@code target}, printing a progress line through the callback once a second.
+     *
+     * @return elapsed time in nanoseconds
+     */
+    public long copy(Path source, Path target) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        return copy(List.of(source), List.of(target), List.of(attrs));
+    }
+
+    /**
+     * Copies each source to the target at the same index, all on one pool.
+     *
+     * @return elapsed time in nanoseconds
+     */
+    public long copy(List<Path> sources, List<Path> targets, List<BasicFileAttributes> attributes) {
+        List<CopyTask> tasks = new ArrayList<>();
+        for (int i = 0; i < sources.size(); i++) {
+            tasks.add(new CopyTask(sources.get(i), targets.get(i), attributes.get(i)));
+        }
+        return Workers.run(Workers.count(), tasks, "copy", this::report, progress);
+    }
+
+    /** One-line summary of the work done so far, e.g. "1200 files, 3 directories, 4.1 MB (12.0 MB/sec)". */
+    public String report(long elapsedNanos) {
+        double seconds = Math.max(elapsedNanos / 1e9, 1e-9);
+        String summary = files.sum() + " files, " + directories.sum() + " directories, "
+                + Commands.humanSize(bytes.sum()) + " (" + Commands.humanSize(Math.round(bytes.sum() / seconds)) + "/sec)";
+        return skipped.sum() == 0 ? summary : summary + ", " + skipped.sum() + " unchanged files skipped";
+    }
+
+    /** The first error met, or null when everything was copied. */
+    public String firstFailure() {
+        return firstFailure;
+    }
+
+    // Copies [position, end) of source into target at the same offsets
+    private void copyRange(FileChannel in, FileChannel out, long position, long end) throws IOException {
+        out.position(position);
+        while (position < end && !stop.getAsBoolean()) {
+            long sent = in.transferTo(position, end - position, out);
+            if (sent <= 0) {
+                break; // the source shrank while we were copying it
+            }
+            position += sent;
+            bytes.add(sent);
+        }
+    }
+
+    private boolean unchanged(Path target, BasicFileAttributes attrs) {
+        try {
+            BasicFileAttributes existing = Files.readAttributes(target, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            return existing.isRegularFile() && existing.size() == attrs.size()
+                    && existing.lastModifiedTime().toMillis() == attrs.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void copyAttributes(Path source, Path target, BasicFileAttributes attrs) throws IOException {
+        PosixFileAttributeView posix = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+        if (posix != null) {
+            posix.setPermissions(Files.getPosixFilePermissions(source));
+        }
+        Files.setLastModifiedTime(target, attrs.lastModifiedTime());
+    }
+
+    private void fail(Path path, IOException e) {
+        failures.increment();
+        if (firstFailure == null) {
+            firstFailure = path + ": " + e.getMessage();
+        }
+    }
+
+    private final class CopyTask extends RecursiveAction {
+        private final Path source;
+        private final Path target;
+        private final BasicFileAttributes attrs;
+
+        CopyTask(Path source, Path target, BasicFileAttributes attrs) {
+            this.source = source;
+            this.target = target;
+            this.attrs = attrs;
+        }
+
+        @Override
+        protected void compute() {
+            if (stop.getAsBoolean()) {
+                return;
+            }
+            try {
+                if (attrs.isSymbolicLink()) {
+                    Files.deleteIfExists(target);
+                    Files.createSymbolicLink(target, Files.readSymbolicLink(source));
+                    files.increment();
+                } else if (!attrs.isDirectory()) {
+                    copyFile();
+                } else {
+                    copyDirectory();
+                }
+            } catch (IOException e) {
+                fail(source, e);
+            }
+        }
+
+        private void copyFile() throws IOException {
+            if (update && unchanged(target, attrs)) {
+                skipped.increment();
+                return;
+            }
+            long size = attrs.size();
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                if (size < CHUNKED_THRESHOLD) {
+                    copyRange(in, out, 0, size);
+                } else {
+                    List<ChunkTask> chunks = new ArrayList<>();
+                    for (long position = 0; position < size; position += CHUNK_SIZE) {
+                        chunks.add(new ChunkTask(in, target, position, Math.min(size, position + CHUNK_SIZE)));
+                    }
+                    invokeAll(chunks);
+                    for (ChunkTask chunk : chunks) {
+                        if (chunk.failure != null) {
+                            throw chunk.failure;
+                        }
+                    }
+                }
+            }
+            if (stop.getAsBoolean()) {
+                return;
+            }
+            copyAttributes(source, target, attrs);
+            files.increment();
+        }
+
+        private void copyDirectory() throws IOException {
+            Files.createDirectories(target);
+            List<CopyTask> children = new ArrayList<>();
+            for (TreeWalker.Entry entry : TreeWalker.list(source)) {
+                children.add(new CopyTask(entry.path, target.resolve(entry.path.getFileName().toString()), entry.attrs));
+            }
+            invokeAll(children);
+            if (stop.getAsBoolean()) {
+                return;
+            }
+            // Set last: creating the children has just changed the directory's own mtime
+            copyAttributes(source, target, attrs);
+            directories.increment();
+        }
+    }
+
+    // One piece of a large file; the source channel is shared (positional reads), the target channel is not
+    private final class ChunkTask extends RecursiveAction {
+        private final FileChannel in;
+        private final Path target;
+        private final long start;
+        private final long end;
+        IOException failure;
+
+        ChunkTask(FileChannel in, Path target, long start, long end) {
+            this.in = in;
+            this.target = target;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE)) {
+                copyRange(in, out, start, end);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+}
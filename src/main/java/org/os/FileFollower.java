@@ -0,0 +1,144 @@
+package org.os;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * tail -f: keeps a file open at the last position read and writes out whatever is appended to it.
+ * A WatchService on the file's directory wakes the follower as soon as the file changes; a short poll
+ * covers filesystems that deliver no events. Rotation is detected when the path starts naming a different
+ * file (its file key changes) or the file shrinks, and the new file is then followed from its start.
+ */
+public class FileFollower {
+
+    // Longest wait between two checks when no watch event arrives
+    static final long POLL_INTERVAL_MILLIS = 250;
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path file;
+    private final PrintStream out;
+    private final BooleanSupplier stop;
+    // Reused for every read; new bytes go from the kernel into it and from there to the output
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final byte[] transfer = new byte[BUFFER_SIZE];
+
+    long bytesRead;
+
+    /**
+     * @param stop checked on every wake-up; following ends once it returns true
+     */
+    public FileFollower(Path file, PrintStream out, BooleanSupplier stop) {
+        this.file = file;
+        this.out = out;
+        this.stop = stop;
+    }
+
+    /**
+     * Follows the file from {@code position} until the stop condition holds, the output is closed
+     * or the thread is interrupted.
+     */
+    public void follow(long position) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        Object fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+        WatchService watcher = null;
+        try {
+            try {
+                watcher = FileSystems.getDefault().newWatchService();
+                file.toAbsolutePath().getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException | UnsupportedOperationException e) {
+                watcher = null; // polling alone still works
+            }
+
+            while (!stop.getAsBoolean() && !out.checkError()) {
+                position = drain(channel, position);
+
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    attrs = null; // rotated away and not recreated yet
+                }
+                if (attrs != null && !Objects.equals(attrs.fileKey(), fileKey) && attrs.fileKey() != null) {
+                    // A new file took the name: finish the old one, then start over on the new one
+                    position = drain(channel, position);
+                    channel.close();
+                    channel = FileChannel.open(file, StandardOpenOption.READ);
+                    fileKey = attrs.fileKey();
+                    position = 0;
+                    out.println("tail: " + file.getFileName() + " has been replaced; following new file");
+                    continue;
+                }
+                if (attrs != null && attrs.size() < position) {
+                    out.println("tail: " + file.getFileName() + ": file truncated");
+                    position = 0;
+                    continue;
+                }
+                if (!await(watcher)) {
+                    return;
+                }
+            }
+        } catch (ClosedByInterruptException e) {
+            // Interrupted in the middle of a read: that is a stop request too
+        } finally {
+            channel.close();
+            if (watcher != null) {
+                watcher.close();
+            }
+        }
+    }
+
+    // Copies everything past position to the output, returning the new position
+    private long drain(FileChannel channel, long position) throws IOException {
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                return position;
+            }
+            buffer.flip();
+            buffer.get(transfer, 0, read);
+            out.write(transfer, 0, read);
+            out.flush();
+            position += read;
+            bytesRead += read;
+        }
+    }
+
+    // Waits for a change in the directory or the poll interval; false when interrupted
+    private boolean await(WatchService watcher) {
+        try {
+            if (watcher == null) {
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+                return true;
+            }
+            WatchKey key = watcher.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            if (key != null) {
+                // Any event in the directory just triggers a check; the file's own attributes decide what happened
+                key.pollEvents();
+                key.reset();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ClosedWatchServiceException e) {
+            return false;
+        }
+    }
+}
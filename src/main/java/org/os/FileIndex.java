@@ -0,0 +1,427 @@
+package org.os;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * On-disk index of every path under a root directory, for {@code locate}.
+ * Paths relative to the root are stored sorted by their UTF-8 bytes and front-coded: each entry keeps only
+ * the bytes it does not share with the previous one. Every {@link #RESTART_INTERVAL}th entry is stored whole
+ * and its offset recorded, so a prefix query binary-searches those restart points and decodes one run.
+ * The file is memory-mapped when loaded; nothing is copied onto the heap.
+ *
+ * <pre>
+ * int magic, int version, int count, int restartCount, int restartsOffset, int rootLength, root bytes
+ * count x (varint shared, varint suffixLength, suffix bytes, byte flags, [varlong mtime if a directory])
+ * restartCount x int offset
+ * </pre>
+ *
+ * Offsets are ints and the file is mapped as one buffer, so an index is at most {@link #MAX_BYTES} long; a tree
+ * that would need more is refused with an error rather than written with offsets that wrap.
+ */
+public final class FileIndex {
+
+    static final int MAGIC = 0x434C4958; // "CLIX"
+    static final int VERSION = 1;
+    static final int RESTART_INTERVAL = 16;
+    static final byte DIRECTORY = 1;
+    static final long MAX_BYTES = Integer.MAX_VALUE;
+
+    /** One indexed path; mtime is only kept for directories, which is what {@link #update} compares. */
+    static final class Entry {
+        final byte[] key;
+        final boolean directory;
+        final long modified;
+
+        Entry(byte[] key, boolean directory, long modified) {
+            this.key = key;
+            this.directory = directory;
+            this.modified = modified;
+        }
+    }
+
+    final Path root;
+    final int count;
+    private final ByteBuffer data;
+    private final int restartCount;
+    private final int restartsOffset;
+
+    private FileIndex(ByteBuffer data) {
+        this.data = data;
+        this.count = data.getInt(8);
+        this.restartCount = data.getInt(12);
+        this.restartsOffset = data.getInt(16);
+        int rootLength = data.getInt(20);
+        byte[] rootBytes = new byte[rootLength];
+        data.get(24, rootBytes);
+        this.root = Paths.get(new String(rootBytes, StandardCharsets.UTF_8));
+    }
+
+    /** Where the index of root lives under home; one file per root directory. */
+    static Path location(Path home, Path root) {
+        String name = UUID.nameUUIDFromBytes(root.toString().getBytes(StandardCharsets.UTF_8)) + ".idx";
+        return home.resolve(name);
+    }
+
+    /** Every index under home. */
+    static List<Path> all(Path home) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(home)) {
+            return files;
+        }
+        try (var stream = Files.newDirectoryStream(home, "*.idx")) {
+            stream.forEach(files::add);
+        }
+        files.sort(null);
+        return files;
+    }
+
+    public static FileIndex load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > MAX_BYTES) {
+                throw new IOException("Not a filename index: " + file);
+            }
+            // The mapping stays valid after the channel is closed
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (data.limit() < 24 || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+                throw new IOException("Not a filename index: " + file);
+            }
+            return new FileIndex(data);
+        }
+    }
+
+    /** Walks root on the shared pool and writes its index to file, returning the number of entries. */
+    public static int build(Path root, Path file) throws IOException {
+        return build(root, file, () -> false);
+    }
+
+    /**
+     * Like {@link #build(Path, Path)}, but ends the walk once stop returns true. A walk cut short writes
+     * nothing, leaving any earlier index in place, and returns -1.
+     */
+    public static int build(Path root, Path file, BooleanSupplier stop) throws IOException {
+        ConcurrentLinkedQueue<Entry> found = new ConcurrentLinkedQueue<>();
+        new TreeWalker().stopWhen(stop).walkParallel(root, (path, attrs, depth) -> found.add(entry(root, path, attrs)));
+        if (stop.getAsBoolean()) {
+            return -1;
+        }
+        List<Entry> entries = new ArrayList<>(found);
+        write(root, entries, file, MAX_BYTES);
+        return entries.size();
+    }
+
+    /**
+     * Re-indexes root, re-listing only directories whose mtime differs from the indexed one; the children of an
+     * unchanged directory are taken from the old index. Returns the number of directories that were re-read.
+     */
+    public int update(Path file) throws IOException {
+        Map<String, Entry> directories = new HashMap<>();
+        Map<String, List<Entry>> children = new HashMap<>();
+        forEach(new byte[0], (key, length, flags, modified) -> {
+            byte[] copy = Arrays.copyOf(key, length);
+            Entry entry = new Entry(copy, (flags & DIRECTORY) != 0, modified);
+            if (length == 0) {
+                directories.put("", entry);
+                return;
+            }
+            String path = new String(copy, StandardCharsets.UTF_8);
+            int slash = path.lastIndexOf('/');
+            children.computeIfAbsent(slash < 0 ? "" : path.substring(0, slash), p -> new ArrayList<>()).add(entry);
+            if (entry.directory) {
+                directories.put(path, entry);
+            }
+        });
+
+        List<Entry> entries = new ArrayList<>();
+        int[] reread = {0};
+        updateDirectory(root, "", directories, children, entries, reread);
+        write(root, entries, file, MAX_BYTES);
+        return reread[0];
+    }
+
+    private void updateDirectory(Path dir, String relative, Map<String, Entry> directories, Map<String, List<Entry>> children,
+                                 List<Entry> entries, int[] reread) throws IOException {
+        long modified = Files.getLastModifiedTime(dir, LinkOption.NOFOLLOW_LINKS).toMillis();
+        entries.add(new Entry(relative.getBytes(StandardCharsets.UTF_8), true, modified));
+        Entry indexed = directories.get(relative);
+        List<Entry> contents;
+        if (indexed != null && indexed.modified == modified) {
+            // Nothing was added, removed or renamed directly in this directory
+            contents = children.getOrDefault(relative, List.of());
+        } else {
+            reread[0]++;
+            contents = new ArrayList<>();
+            for (TreeWalker.Entry child : TreeWalker.list(dir)) {
+                contents.add(entry(root, child.path, child.attrs));
+            }
+        }
+        for (Entry child : contents) {
+            if (child.directory) {
+                String name = new String(child.key, StandardCharsets.UTF_8);
+                try {
+                    updateDirectory(root.resolve(name), name, directories, children, entries, reread);
+                } catch (IOException e) {
+                    // Removed since it was indexed; a changed parent mtime would normally have caught that
+                }
+            } else {
+                entries.add(child);
+            }
+        }
+    }
+
+    private static Entry entry(Path root, Path path, BasicFileAttributes attrs) {
+        String relative = root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+        long modified = attrs.isDirectory() ? attrs.lastModifiedTime().toMillis() : 0;
+        return new Entry(relative.getBytes(StandardCharsets.UTF_8), attrs.isDirectory(), modified);
+    }
+
+    /** Writes the index of entries under root to file; fails, leaving file as it was, past maxBytes. */
+    static void write(Path root, List<Entry> entries, Path file, long maxBytes) throws IOException {
+        entries.sort((a, b) -> Arrays.compareUnsigned(a.key, b.key));
+        byte[] rootBytes = root.toString().getBytes(StandardCharsets.UTF_8);
+        int[] restarts = new int[(entries.size() + RESTART_INTERVAL - 1) / RESTART_INTERVAL];
+
+        Files.createDirectories(file.getParent());
+        // Written next to the old index and renamed over it, so a concurrent locate never sees half a file
+        Path temp = Files.createTempFile(file.getParent(), "index", ".tmp");
+        try {
+            int offset;
+            try (CountingStream counter = new CountingStream(Files.newOutputStream(temp));
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(counter, 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                out.writeInt(restarts.length);
+                out.writeInt(0); // restarts offset, patched below
+                out.writeInt(rootBytes.length);
+                out.write(rootBytes);
+                byte[] previous = new byte[0];
+                for (int i = 0; i < entries.size(); i++) {
+                    Entry entry = entries.get(i);
+                    int shared = 0;
+                    if (i % RESTART_INTERVAL == 0) {
+                        out.flush();
+                        checkSize(root, counter.count, maxBytes);
+                        restarts[i / RESTART_INTERVAL] = (int) counter.count;
+                    } else {
+                        shared = Arrays.mismatch(previous, entry.key);
+                        shared = shared < 0 ? previous.length : shared;
+                    }
+                    Varint.writeLong(out, shared);
+                    Varint.writeLong(out, entry.key.length - shared);
+                    out.write(entry.key, shared, entry.key.length - shared);
+                    out.writeByte(entry.directory ? DIRECTORY : 0);
+                    if (entry.directory) {
+                        Varint.writeLong(out, entry.modified);
+                    }
+                    previous = entry.key;
+                }
+                out.flush();
+                checkSize(root, counter.count + 4L * restarts.length, maxBytes);
+                offset = (int) counter.count;
+                for (int restart : restarts) {
+                    out.writeInt(restart);
+                }
+            }
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.allocate(4).putInt(0, offset), 16);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void checkSize(Path root, long size, long maxBytes) throws IOException {
+        if (size > maxBytes) {
+            throw new IOException("Index of " + root + " would be larger than " + Commands.humanSize(maxBytes)
+                    + "; index a smaller directory");
+        }
+    }
+
+    private static final class CountingStream extends FilterOutputStream {
+        long count;
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    interface KeyVisitor {
+        // key is reused between calls; only its first length bytes are valid
+        void visit(byte[] key, int length, byte flags, long modified);
+    }
+
+    /**
+     * Prints every indexed path that matches, as an absolute path. A pattern with glob characters is matched
+     * against the file name, or against the whole relative path when it contains '/'; anything else is a substring.
+     *
+     * @return the number of matches
+     */
+    public long locate(String pattern, Consumer<String> sink) {
+        long[] matches = {0};
+        boolean glob = pattern.chars().anyMatch(c -> "*?[{".indexOf(c) >= 0);
+        if (!glob) {
+            LineMatcher literal = LineMatcher.literal(pattern, false);
+            ByteBuffer[] view = {ByteBuffer.allocate(0)};
+            forEach(new byte[0], (key, length, flags, modified) -> {
+                if (view[0].array() != key) {
+                    view[0] = ByteBuffer.wrap(key);
+                }
+                if (length > 0 && literal.find(view[0], 0, length) >= 0) {
+                    matches[0]++;
+                    sink.accept(resolve(key, length));
+                }
+            });
+            return matches[0];
+        }
+
+        boolean wholePath = pattern.indexOf('/') >= 0;
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        // A whole-path glob can only match below its literal leading part, so only that run of the index is decoded
+        byte[] prefix = wholePath ? literalPrefix(pattern).getBytes(StandardCharsets.UTF_8) : new byte[0];
+        // Cheap byte test that rejects most names before a Path is built for the glob
+        LineMatcher required = requiredLiteral(pattern);
+        ByteBuffer[] view = {ByteBuffer.allocate(0)};
+        forEach(prefix, (key, length, flags, modified) -> {
+            if (length == 0) {
+                return;
+            }
+            if (required != null) {
+                if (view[0].array() != key) {
+                    view[0] = ByteBuffer.wrap(key);
+                }
+                if (required.find(view[0], 0, length) < 0) {
+                    return;
+                }
+            }
+            String relative = new String(key, 0, length, StandardCharsets.UTF_8);
+            Path candidate = Paths.get(relative);
+            if (matcher.matches(wholePath ? candidate : candidate.getFileName())) {
+                matches[0]++;
+                sink.accept(root.resolve(relative).toString());
+            }
+        });
+        return matches[0];
+    }
+
+    private String resolve(byte[] key, int length) {
+        return root.resolve(new String(key, 0, length, StandardCharsets.UTF_8)).toString();
+    }
+
+    private static String literalPrefix(String glob) {
+        int end = 0;
+        while (end < glob.length() && "*?[{\\".indexOf(glob.charAt(end)) < 0) {
+            end++;
+        }
+        return glob.substring(0, end);
+    }
+
+    // The longest run of plain characters, which every match must contain; null when the glob is too rich to tell
+    private static LineMatcher requiredLiteral(String glob) {
+        if (glob.chars().anyMatch(c -> "[{\\".indexOf(c) >= 0)) {
+            return null;
+        }
+        String longest = "";
+        for (String part : glob.split("[*?]")) {
+            if (part.length() > longest.length()) {
+                longest = part;
+            }
+        }
+        return longest.isEmpty() ? null : LineMatcher.literal(longest, false);
+    }
+
+    /** Decodes, in order, every entry whose key starts with prefix. */
+    void forEach(byte[] prefix, KeyVisitor visitor) {
+        if (count == 0) {
+            return;
+        }
+        int position = restartFor(prefix);
+        byte[] key = new byte[256];
+        int[] cursor = {position};
+        while (cursor[0] < restartsOffset) {
+            int shared = (int) Varint.readLong(data, cursor);
+            int suffix = (int) Varint.readLong(data, cursor);
+            if (key.length < shared + suffix) {
+                key = Arrays.copyOf(key, Math.max(shared + suffix, key.length * 2));
+            }
+            data.get(cursor[0], key, shared, suffix);
+            cursor[0] += suffix;
+            int length = shared + suffix;
+            byte flags = data.get(cursor[0]++);
+            long modified = (flags & DIRECTORY) != 0 ? Varint.readLong(data, cursor) : 0;
+            if (startsWith(key, length, prefix)) {
+                visitor.visit(key, length, flags, modified);
+            } else if (Arrays.compareUnsigned(key, 0, length, prefix, 0, prefix.length) > 0) {
+                return; // past every key with this prefix
+            }
+        }
+    }
+
+    // Offset of the last restart whose key sorts before the prefix, where a scan for it has to begin
+    private int restartFor(byte[] prefix) {
+        int low = 0;
+        int high = restartCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (compareRestart(mid, prefix) < 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return data.getInt(restartsOffset + 4 * low);
+    }
+
+    private int compareRestart(int restart, byte[] prefix) {
+        int[] cursor = {data.getInt(restartsOffset + 4 * restart)};
+        Varint.readLong(data, cursor); // shared is always 0 at a restart
+        int length = (int) Varint.readLong(data, cursor);
+        for (int i = 0; i < length && i < prefix.length; i++) {
+            int difference = (data.get(cursor[0] + i) & 0xFF) - (prefix[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - prefix.length;
+    }
+
+    private static boolean startsWith(byte[] key, int length, byte[] prefix) {
+        return length >= prefix.length && Arrays.equals(key, 0, prefix.length, prefix, 0, prefix.length);
+    }
+}
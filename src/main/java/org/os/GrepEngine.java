@@ -0,0 +1,255 @@
+package org.os;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Line search over a memory-mapped file.
+ * The file is split into line-aligned chunks that are searched in parallel by a {@link LineMatcher}
+ * working on the raw bytes; only matching lines are decoded.
+ * Results are always delivered in file order.
+ */
+public class GrepEngine {
+
+    // A line belongs to the chunk in which it starts
+    static final long CHUNK_SIZE = 16L << 20;
+
+    // Largest window mapped for one chunk: the chunk and room for its last line to run past the chunk's end.
+    // With a bounded number of chunks in flight this bounds the address space a search maps at once;
+    // a line that runs past the window is searched and printed only up to the window's end
+    static final long MAP_WINDOW = 64L << 20;
+
+    public interface LineSink {
+        void accept(long lineNumber, String line);
+    }
+
+    private final LineMatcher matcher;
+    // When set, line numbers are looked up instead of counted
+    private LineIndex lineIndex;
+    private BooleanSupplier stop = () -> false;
+
+    public GrepEngine(String pattern) {
+        this(LineMatcher.literal(pattern, false));
+    }
+
+    public GrepEngine(LineMatcher matcher) {
+        this.matcher = matcher;
+    }
+
+    /**
+     * Numbers matching lines by binary search in a prebuilt index of the file instead of counting
+     * every newline before them, so chunks far into the file need no pass over their non-matching lines.
+     */
+    public GrepEngine withLineIndex(LineIndex lineIndex) {
+        this.lineIndex = lineIndex;
+        return this;
+    }
+
+    /** Ends a search early once stop returns true; it is checked before each chunk is taken in. */
+    public GrepEngine stopWhen(BooleanSupplier stop) {
+        this.stop = stop;
+        return this;
+    }
+
+    /**
+     * Searches the file and hands every matching line to the sink in file order.
+     * When countOnly is set, lines are not decoded and the sink is never called.
+     * Line numbers are 1-based, or -1 when lineNumbers is false.
+     *
+     * @return the number of matching lines
+     */
+    public long search(Path file, boolean lineNumbers, boolean countOnly, LineSink sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) {
+                return 0;
+            }
+            int chunks = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            if (chunks == 1) {
+                return emit(searchChunk(channel, size, 0, lineNumbers, countOnly), 1, sink)[0];
+            }
+
+            // Keep a bounded number of chunks in flight and consume them in order
+            int window = Math.max(2, ForkJoinPool.getCommonPoolParallelism() * 2);
+            Deque<CompletableFuture<ChunkResult>> inFlight = new ArrayDeque<>();
+            int next = 0;
+            long total = 0;
+            long lineBase = 1;
+            while (next < chunks || !inFlight.isEmpty()) {
+                if (stop.getAsBoolean()) {
+                    inFlight.forEach(f -> f.cancel(true));
+                    return total;
+                }
+                while (next < chunks && inFlight.size() < window) {
+                    int index = next++;
+                    inFlight.add(CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return searchChunk(channel, size, index, lineNumbers, countOnly);
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
+                        }
+                    }));
+                }
+                ChunkResult result;
+                try {
+                    result = inFlight.poll().join();
+                } catch (CompletionException e) {
+                    inFlight.forEach(f -> f.cancel(true));
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw e;
+                }
+                long[] counts = emit(result, lineBase, sink);
+                total += counts[0];
+                lineBase += counts[1];
+            }
+            return total;
+        }
+    }
+
+    // Returns {matches, newlines} so the caller can carry the line number into the next chunk
+    private long[] emit(ChunkResult result, long lineBase, LineSink sink) {
+        if (sink != null) {
+            for (int i = 0; i < result.lines.size(); i++) {
+                long lineNumber = result.lineNumbers == null ? -1
+                        : lineIndex != null ? result.lineNumbers[i] : lineBase + result.lineNumbers[i];
+                sink.accept(lineNumber, result.lines.get(i));
+            }
+        }
+        return new long[]{result.count, result.newlines};
+    }
+
+    private ChunkResult searchChunk(FileChannel channel, long size, int index,
+                                    boolean lineNumbers, boolean countOnly) throws IOException {
+        long chunkStart = index * CHUNK_SIZE;
+        long chunkEnd = Math.min(size, chunkStart + CHUNK_SIZE);
+        // Map one byte before the chunk so we can tell whether it starts on a line boundary
+        long mapStart = index == 0 ? 0 : chunkStart - 1;
+        long mapLength = Math.min(size - mapStart, MAP_WINDOW);
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapLength);
+
+        int limit = (int) mapLength;
+        int start = (int) (chunkStart - mapStart);
+        int end = (int) Math.min(chunkEnd - mapStart, limit);
+        ChunkResult result = new ChunkResult(lineNumbers && !countOnly);
+
+        // Skip the tail of a line that began in the previous chunk
+        int pos = start;
+        if (index > 0 && buf.get(start - 1) != '\n') {
+            int nl = indexOf(buf, (byte) '\n', start, end);
+            if (nl < 0) {
+                return result;
+            }
+            pos = nl + 1;
+        }
+
+        // Bound the search to the end of the last line that starts in this chunk
+        int searchLimit = end;
+        if (end > 0 && end < limit && buf.get(end - 1) != '\n') {
+            int nl = indexOf(buf, (byte) '\n', end, limit);
+            searchLimit = nl < 0 ? limit : nl;
+        }
+
+        int counted = start;
+        long newlines = 0;
+        while (pos < end) {
+            int hit = matcher.find(buf, pos, searchLimit);
+            if (hit < 0) {
+                break;
+            }
+            int lineStart = lastIndexOf(buf, (byte) '\n', hit - 1, pos) + 1;
+            int lineEnd = indexOf(buf, (byte) '\n', hit, searchLimit);
+            if (lineEnd < 0) {
+                lineEnd = searchLimit;
+            }
+            result.count++;
+            if (!countOnly) {
+                if (result.lineNumbers != null && lineIndex != null) {
+                    result.addLineNumber(lineIndex.lineAt(mapStart + lineStart));
+                } else if (result.lineNumbers != null) {
+                    newlines += countNewlines(buf, counted, lineStart);
+                    counted = lineStart;
+                    result.addLineNumber(newlines);
+                }
+                result.lines.add(decode(buf, lineStart, lineEnd));
+            }
+            pos = lineEnd + 1;
+        }
+        if (result.lineNumbers != null && lineIndex == null) {
+            newlines += countNewlines(buf, counted, end);
+        }
+        result.newlines = newlines;
+        return result;
+    }
+
+    private static int indexOf(MappedByteBuffer buf, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Searches backwards from 'from' down to 'floor'; returns floor - 1 when not found
+    private static int lastIndexOf(MappedByteBuffer buf, byte value, int from, int floor) {
+        for (int i = from; i >= floor; i--) {
+            if (buf.get(i) == value) {
+                return i;
+            }
+        }
+        return floor - 1;
+    }
+
+    private static long countNewlines(MappedByteBuffer buf, int from, int to) {
+        long n = 0;
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == '\n') {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static String decode(MappedByteBuffer buf, int from, int to) {
+        // Match Files.lines, which drops the carriage return of CRLF endings
+        if (to > from && buf.get(to - 1) == '\r') {
+            to--;
+        }
+        byte[] bytes = new byte[to - from];
+        buf.get(from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class ChunkResult {
+        final List<String> lines = new ArrayList<>();
+        long[] lineNumbers;
+        int size;
+        long count;
+        long newlines;
+
+        ChunkResult(boolean withLineNumbers) {
+            lineNumbers = withLineNumbers ? new long[16] : null;
+        }
+
+        void addLineNumber(long n) {
+            if (size == lineNumbers.length) {
+                lineNumbers = Arrays.copyOf(lineNumbers, size * 2);
+            }
+            lineNumbers[size++] = n;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.os;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Commands started in the background with a trailing '&'. Every job runs on its own virtual thread, so dozens
+ * of scans cost a few kilobytes of stack each instead of a platform thread or a JVM. A job keeps the working
+ * directory it was started in; its output is held in memory until fg or wait prints it, unless the command
+ * line sent it to a file. At most {@link #MAX_OUTPUT} bytes are held per job, so a scan that prints more
+ * than that keeps its first lines and reports how much it dropped.
+ */
+public class Jobs {
+
+    enum State { RUNNING, DONE, KILLED }
+
+    // Output kept in memory per job; redirect a job to a file to keep everything
+    static final int MAX_OUTPUT = 16 << 20;
+
+    static final class Job {
+        final int id;
+        final String command;
+        final Path directory;
+        final long started = System.nanoTime();
+        // Null when the output goes to a file instead
+        final Buffer buffer;
+        final PrintStream out;
+        Thread thread;
+        volatile long finished;
+        // Set by kill; the command finds out by polling stopIfKilled
+        volatile boolean killed;
+        // Set once the command saw the kill and stopped short of finishing
+        volatile boolean stopped;
+        // Set once the prompt has announced that the job ended
+        boolean reported;
+
+        Job(int id, String command, Path directory, OutputStream target) {
+            this.id = id;
+            this.command = command;
+            this.directory = directory;
+            this.buffer = target == null ? new Buffer(MAX_OUTPUT) : null;
+            this.out = Output.to(target == null ? buffer : target);
+        }
+
+        State state() {
+            if (finished == 0) {
+                return State.RUNNING;
+            }
+            return stopped ? State.KILLED : State.DONE;
+        }
+
+        /**
+         * True once the job has been killed, polled by the command's loops and worker pools. A caller that
+         * sees true must stop, which is why the job is then reported as terminated rather than done.
+         */
+        boolean stopIfKilled() {
+            if (killed) {
+                stopped = true;
+            }
+            return killed;
+        }
+
+        /** e.g. "[2] Running   1.4s  grep -r TODO src" */
+        String describe() {
+            long end = finished == 0 ? System.nanoTime() : finished;
+            String state = switch (state()) {
+                case RUNNING -> "Running";
+                case DONE -> "Done";
+                case KILLED -> "Terminated";
+            };
+            String line = String.format(Locale.ROOT, "[%d] %-10s %6.1fs  %s", id, state, (end - started) / 1e9, command);
+            long dropped = dropped();
+            return dropped == 0 ? line : line + "  (output truncated, " + Commands.humanSize(dropped) + " not kept)";
+        }
+
+        /** What the job printed; empty when its output went to a file. */
+        String output() {
+            return buffer == null ? "" : buffer.text();
+        }
+
+        /** Bytes of output dropped because the job printed more than MAX_OUTPUT. */
+        long dropped() {
+            return buffer == null ? 0 : buffer.dropped;
+        }
+    }
+
+    /**
+     * Holds a job's output up to a limit. Past it, the output is cut after the last whole line that fits and
+     * everything after is only counted.
+     */
+    static final class Buffer extends OutputStream {
+        private final ByteArrayOutputStream kept = new ByteArrayOutputStream();
+        private final int limit;
+        private boolean full;
+        volatile long dropped;
+
+        Buffer(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            int room = full ? 0 : Math.min(len, limit - kept.size());
+            if (room < len && !full) {
+                full = true;
+                // Keep whole lines only, so the output does not end in half a line or half a character
+                while (room > 0 && b[off + room - 1] != '\n') {
+                    room--;
+                }
+            }
+            kept.write(b, off, room);
+            dropped += len - room;
+        }
+
+        synchronized String text() {
+            return kept.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    // Ordered by id; guarded by this
+    private final TreeMap<Integer, Job> jobs = new TreeMap<>();
+
+    /**
+     * Starts body on a new virtual thread, handing it the job, whose out is the stream the job writes to.
+     *
+     * @param target where the output goes, or null to keep it in memory
+     */
+    synchronized Job start(String command, Path directory, OutputStream target, Consumer<Job> body) {
+        // Like a shell, numbering starts over once every job has been collected
+        int id = jobs.isEmpty() ? 1 : jobs.lastKey() + 1;
+        Job job = new Job(id, command, directory, target);
+        job.thread = Thread.ofVirtual().name("job-" + id).unstarted(() -> {
+            try {
+                body.accept(job);
+            } finally {
+                if (job.buffer == null) {
+                    job.out.close();
+                } else {
+                    job.out.flush();
+                }
+                job.finished = System.nanoTime();
+            }
+        });
+        jobs.put(id, job);
+        job.thread.start();
+        return job;
+    }
+
+    synchronized Job get(int id) {
+        return jobs.get(id);
+    }
+
+    synchronized List<Job> list() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    /** Forgets a finished job once its output has been shown. */
+    synchronized void remove(Job job) {
+        jobs.remove(job.id);
+    }
+
+    /** Jobs that ended since the last call, each returned once. */
+    synchronized List<Job> newlyFinished() {
+        List<Job> finished = new ArrayList<>();
+        for (Job job : jobs.values()) {
+            if (job.finished != 0 && !job.reported) {
+                job.reported = true;
+                finished.add(job);
+            }
+        }
+        return finished;
+    }
+
+    /**
+     * Asks a job to stop: sets the flag its command polls and interrupts its thread. Blocking waits, pipes and
+     * followers end at once; walks, searches, copies, deletes and hashing stop at their next directory, file
+     * or chunk, on whichever pool threads they run.
+     *
+     * @return false if the job had already ended
+     */
+    boolean kill(Job job) {
+        if (job.finished != 0) {
+            return false;
+        }
+        job.killed = true;
+        job.thread.interrupt();
+        return true;
+    }
+
+    /** Waits for a job to end; false if the waiting thread was interrupted first. */
+    static boolean await(Job job) {
+        try {
+            job.thread.join();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package org.os;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * The byte offset at which every line of a file starts, kept in a memory-mapped sidecar file so
+ * line N of a multi-gigabyte log is one array lookup away and no offsets live on the Java heap.
+ * A sidecar records the size and mtime of the file it was built from and is rebuilt when either changes.
+ * Sidecars found stale are deleted, and at most {@link #MAX_SIDECARS} are kept: building one more removes
+ * the least recently opened, so sidecars of deleted files do not pile up.
+ *
+ * <pre>
+ * int magic, int version, long sourceSize, long sourceModified, long lines,
+ * (lines + 1) x long: the start of each line, then the file size
+ * </pre>
+ */
+public final class LineIndex {
+
+    static final int MAGIC = 0x434C4C49; // "CLLI"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int MAX_SIDECARS = 256;
+
+    // Window mapped at a time while scanning the source
+    private static final long SCAN_WINDOW = 256L << 20;
+    // Offsets are staged here and written in one call when it fills up
+    private static final int WRITE_BUFFER = 1 << 20;
+    // A mapping is limited to 2 GB, so big sidecars are mapped in 1 GB segments; a long never straddles two
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private final ByteBuffer[] segments;
+    private final long lines;
+    final long sourceSize;
+    final long sourceModified;
+
+    private LineIndex(ByteBuffer[] segments) {
+        this.segments = segments;
+        this.sourceSize = segments[0].getLong(8);
+        this.sourceModified = segments[0].getLong(16);
+        this.lines = segments[0].getLong(24);
+    }
+
+    /** Where the sidecar for file lives under home. */
+    static Path location(Path home, Path file) {
+        String name = UUID.nameUUIDFromBytes(file.toString().getBytes(StandardCharsets.UTF_8)) + ".lines";
+        return home.resolve("lines").resolve(name);
+    }
+
+    /**
+     * Returns the index of file, building it first if the sidecar is missing or stale,
+     * or returning null in that case when build is false.
+     */
+    public static LineIndex open(Path file, Path home, boolean build) throws IOException {
+        Path source = file.toAbsolutePath().normalize();
+        BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+        Path sidecar = location(home, source);
+        if (Files.exists(sidecar)) {
+            LineIndex index = load(sidecar);
+            if (index != null && index.isFresh(attrs)) {
+                // The mtime of a sidecar says when it was last used, which is what pruning goes by
+                Files.setLastModifiedTime(sidecar, FileTime.fromMillis(System.currentTimeMillis()));
+                return index;
+            }
+            if (!build) {
+                // Built from an older version of the file, so it can never be used again
+                Files.deleteIfExists(sidecar);
+            }
+        }
+        if (!build) {
+            return null;
+        }
+        write(source, attrs, sidecar);
+        prune(sidecar.getParent(), sidecar);
+        return load(sidecar);
+    }
+
+    /** Deletes every sidecar under home, returning how many there were. */
+    static int clear(Path home) throws IOException {
+        List<Path> sidecars = sidecars(home.resolve("lines"));
+        for (Path sidecar : sidecars) {
+            Files.deleteIfExists(sidecar);
+        }
+        return sidecars.size();
+    }
+
+    // Deletes the least recently used sidecars beyond MAX_SIDECARS, never the one just built
+    private static void prune(Path directory, Path keep) throws IOException {
+        List<Path> sidecars = sidecars(directory);
+        if (sidecars.size() <= MAX_SIDECARS) {
+            return;
+        }
+        List<Path> candidates = new ArrayList<>(sidecars);
+        candidates.remove(keep);
+        candidates.sort(Comparator.comparingLong(LineIndex::lastUsed));
+        for (int i = 0; i < sidecars.size() - MAX_SIDECARS && i < candidates.size(); i++) {
+            Files.deleteIfExists(candidates.get(i));
+        }
+    }
+
+    private static List<Path> sidecars(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".lines")).toList();
+        }
+    }
+
+    private static long lastUsed(Path sidecar) {
+        try {
+            return Files.getLastModifiedTime(sidecar).toMillis();
+        } catch (IOException e) {
+            return Long.MIN_VALUE; // already gone: first in line
+        }
+    }
+
+    private static LineIndex load(Path sidecar) throws IOException {
+        try (FileChannel channel = FileChannel.open(sidecar, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                return null;
+            }
+            long size = channel.size();
+            ByteBuffer[] segments = new ByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, SEGMENT_MASK + 1));
+            }
+            if (segments[0].getInt(0) != MAGIC || segments[0].getInt(4) != VERSION) {
+                return null;
+            }
+            return new LineIndex(segments);
+        }
+    }
+
+    /** True while the file still has the size and mtime the index was built from. */
+    boolean isFresh(BasicFileAttributes attrs) {
+        return attrs.size() == sourceSize && attrs.lastModifiedTime().toMillis() == sourceModified;
+    }
+
+    public long lines() {
+        return lines;
+    }
+
+    /** Byte offset of the first byte of a 1-based line; lines() + 1 gives the file size. */
+    public long start(long line) {
+        long position = HEADER_SIZE + (line - 1) * 8;
+        return segments[(int) (position >>> SEGMENT_SHIFT)].getLong((int) (position & SEGMENT_MASK));
+    }
+
+    /** Byte offset just past a line, including its newline. */
+    public long end(long line) {
+        return start(line + 1);
+    }
+
+    /** The 1-based line containing a byte offset. */
+    public long lineAt(long offset) {
+        long low = 1;
+        long high = lines;
+        while (low < high) {
+            long mid = (low + high + 1) >>> 1;
+            if (start(mid) <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private static void write(Path source, BasicFileAttributes attrs, Path sidecar) throws IOException {
+        Files.createDirectories(sidecar.getParent());
+        Path temp = Files.createTempFile(sidecar.getParent(), "lines", ".tmp");
+        try {
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                long size = in.size();
+                ByteBuffer staged = ByteBuffer.allocateDirect(WRITE_BUFFER);
+                staged.position(HEADER_SIZE); // header is written last, once the line count is known
+                long lines = 0;
+                if (size > 0) {
+                    staged.putLong(0);
+                    lines = 1;
+                }
+                for (long windowStart = 0; windowStart < size; windowStart += SCAN_WINDOW) {
+                    long windowLength = Math.min(SCAN_WINDOW, size - windowStart);
+                    MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+                    window.order(ByteOrder.LITTLE_ENDIAN);
+                    int limit = (int) windowLength;
+                    int i = 0;
+                    // Eight bytes per step: flag the bytes equal to '\n' with the has-zero-byte trick.
+                    // A borrow can flag a byte just above a real hit, so every candidate is checked
+                    for (; i + 8 <= limit; i += 8) {
+                        long word = window.getLong(i) ^ 0x0A0A0A0A0A0A0A0AL;
+                        long found = (word - 0x0101010101010101L) & ~word & 0x8080808080808080L;
+                        while (found != 0) {
+                            int at = i + (Long.numberOfTrailingZeros(found) >>> 3);
+                            if (window.get(at) == '\n') {
+                                lines += record(staged, out, windowStart + at + 1, size);
+                            }
+                            found &= found - 1;
+                        }
+                    }
+                    for (; i < limit; i++) {
+                        if (window.get(i) == '\n') {
+                            lines += record(staged, out, windowStart + i + 1, size);
+                        }
+                    }
+                }
+                flush(staged, out);
+                out.write(ByteBuffer.allocate(8).putLong(0, size)); // sentinel: end of the last line
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putLong(size).putLong(attrs.lastModifiedTime().toMillis()).putLong(lines);
+                out.write(header.flip(), 0);
+            }
+            Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Records the start of the line after a newline; a newline at the very end starts no line
+    private static int record(ByteBuffer staged, FileChannel out, long lineStart, long size) throws IOException {
+        if (lineStart >= size) {
+            return 0;
+        }
+        if (staged.remaining() < 8) {
+            flush(staged, out);
+        }
+        staged.putLong(lineStart);
+        return 1;
+    }
+
+    private static void flush(ByteBuffer staged, FileChannel out) throws IOException {
+        staged.flip();
+        // The first flush starts with the space reserved for the header, which is filled in at the end
+        while (staged.hasRemaining()) {
+            out.write(staged);
+        }
+        staged.clear();
+    }
+}
@@ -0,0 +1,181 @@
+package org.os;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which lines grep prints. Implementations are immutable and shared between threads,
+ * so a compiled matcher can be cached for the whole session.
+ */
+public interface LineMatcher {
+
+    /**
+     * Searches raw UTF-8 bytes in [from, to) and returns the offset of a byte inside the first matching line,
+     * or -1. The region may span many lines; a match never crosses a newline.
+     */
+    int find(ByteBuffer buf, int from, int to);
+
+    /** Tests a single, already decoded line. */
+    boolean matches(String line);
+
+    static LineMatcher literal(String pattern, boolean ignoreCase) {
+        if (ignoreCase && !isAscii(pattern)) {
+            // Byte-level case folding only covers ASCII; let the regex engine fold everything else
+            return new Regex(Pattern.compile(pattern, Pattern.LITERAL | Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE));
+        }
+        return new Literal(pattern, ignoreCase);
+    }
+
+    static LineMatcher regex(String pattern, boolean ignoreCase) {
+        int flags = ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0;
+        return new Regex(Pattern.compile(pattern, flags));
+    }
+
+    /** Matches lines containing any of the literal patterns, in a single pass over the input. */
+    static LineMatcher anyOf(List<String> patterns, boolean ignoreCase) {
+        if (ignoreCase && !patterns.stream().allMatch(LineMatcher::isAscii)) {
+            StringBuilder alternation = new StringBuilder();
+            for (String pattern : patterns) {
+                if (alternation.length() > 0) {
+                    alternation.append('|');
+                }
+                alternation.append(Pattern.quote(pattern));
+            }
+            return regex(alternation.toString(), true);
+        }
+        return new AhoCorasick(patterns, ignoreCase);
+    }
+
+    /** Matches lines matching any of the regular expressions. */
+    static LineMatcher anyOfRegex(List<String> patterns, boolean ignoreCase) {
+        if (patterns.isEmpty()) {
+            return regex("(?!)", false); // an empty pattern list matches nothing
+        }
+        StringBuilder alternation = new StringBuilder();
+        for (String pattern : patterns) {
+            if (alternation.length() > 0) {
+                alternation.append('|');
+            }
+            alternation.append("(?:").append(pattern).append(')');
+        }
+        return regex(alternation.toString(), ignoreCase);
+    }
+
+    static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int foldAscii(int b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    /** Boyer-Moore-Horspool over raw bytes, optionally folding ASCII case. */
+    final class Literal implements LineMatcher {
+        private final String text;
+        private final boolean ignoreCase;
+        private final byte[] pattern;
+        private final int[] shift = new int[256];
+
+        Literal(String text, boolean ignoreCase) {
+            this.text = ignoreCase ? text.toLowerCase(Locale.ROOT) : text;
+            this.ignoreCase = ignoreCase;
+            this.pattern = this.text.getBytes(StandardCharsets.UTF_8);
+            // Horspool bad-character table
+            int m = pattern.length;
+            Arrays.fill(shift, Math.max(m, 1));
+            for (int i = 0; i < m - 1; i++) {
+                shift[pattern[i] & 0xFF] = m - 1 - i;
+                if (ignoreCase) {
+                    // Both cases of a letter must shift the same way
+                    int b = pattern[i] & 0xFF;
+                    if (b >= 'a' && b <= 'z') {
+                        shift[b - ('a' - 'A')] = m - 1 - i;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int find(ByteBuffer buf, int from, int to) {
+            int m = pattern.length;
+            if (m == 0) {
+                return from < to ? from : -1;
+            }
+            int last = m - 1;
+            byte lastByte = pattern[last];
+            int i = from;
+            while (i + last < to) {
+                int b = buf.get(i + last) & 0xFF;
+                if (fold(b) == lastByte) {
+                    int j = last - 1;
+                    while (j >= 0 && fold(buf.get(i + j) & 0xFF) == pattern[j]) {
+                        j--;
+                    }
+                    if (j < 0) {
+                        return i;
+                    }
+                }
+                i += shift[b];
+            }
+            return -1;
+        }
+
+        private int fold(int b) {
+            return (byte) (ignoreCase ? foldAscii(b) : b);
+        }
+
+        @Override
+        public boolean matches(String line) {
+            return ignoreCase ? line.toLowerCase(Locale.ROOT).contains(text) : line.contains(text);
+        }
+    }
+
+    /** java.util.regex applied line by line; only lines in the searched region are decoded. */
+    final class Regex implements LineMatcher {
+        private final Pattern pattern;
+
+        Regex(Pattern pattern) {
+            this.pattern = pattern;
+        }
+
+        @Override
+        public int find(ByteBuffer buf, int from, int to) {
+            Matcher matcher = pattern.matcher("");
+            byte[] line = new byte[256];
+            int start = from;
+            while (start < to) {
+                int end = start;
+                while (end < to && buf.get(end) != '\n') {
+                    end++;
+                }
+                int length = end - start;
+                if (length > 0 && buf.get(end - 1) == '\r') {
+                    length--;
+                }
+                if (line.length < length) {
+                    line = new byte[Math.max(length, line.length * 2)];
+                }
+                buf.get(start, line, 0, length);
+                if (matcher.reset(new String(line, 0, length, StandardCharsets.UTF_8)).find()) {
+                    return start;
+                }
+                start = end + 1;
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean matches(String line) {
+            return pattern.matcher(line).find();
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package org.os;
 import java.io.*;
 import java.nio.file.*;
+import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.Arrays;
 import org.os.Commands;
 
@@ -9,91 +11,471 @@ import org.os.Commands;
 public class Main {
     private static Path currentDirectory = Paths.get(System.getProperty("user.dir"));
 
+    // Every command execute() knows, looked up by name; also used to validate scripts before they run
+    private static final CommandRegistry REGISTRY = new CommandRegistry(Main::bind)
+            .control("exit", true)
+            .control("time", false)
+            .command("stats")
+            .command("cache")
+            .command("sync")
+            .command("du")
+            .command("dupes")
+            .command("snapshot")
+            .command("index")
+            .command("locate")
+            .command("jobs")
+            .command("fg")
+            .command("wait")
+            .command("kill")
+            .command("help")
+            .command("pwd")
+            .command("cd")
+            .command("ls")
+            .command("ls-a")
+            .command("ls-r")
+            .command("mkdir")
+            .command("rmdir")
+            .command("touch")
+            .command("mv")
+            .command("cp")
+            .command("rm")
+            .command("cat")
+            .command("head")
+            .command("tail")
+            .command("echo")
+            .command("grep");
+
+    // The handler of a registered command, created the first time it runs
+    private static CommandRegistry.Handler bind(String name) {
+        switch (name) {
+            case "exit":
+                return Main::exit;
+            case "time":
+                return Main::time;
+            case "stats":
+                return CommandRegistry.action((commands, command, directory) -> commands.stats(command));
+            case "cache":
+                return CommandRegistry.action((commands, command, directory) -> commands.cache(command));
+            case "sync":
+                return CommandRegistry.action((commands, command, directory) -> commands.sync());
+            case "du":
+                return CommandRegistry.action(Commands::du);
+            case "dupes":
+                return CommandRegistry.action(Commands::dupes);
+            case "snapshot":
+                return CommandRegistry.action(Commands::snapshot);
+            case "index":
+                return CommandRegistry.action(Commands::index);
+            case "locate":
+                return CommandRegistry.action((commands, command, directory) -> commands.locate(command));
+            case "jobs":
+                return CommandRegistry.action((commands, command, directory) -> commands.jobs());
+            case "fg":
+                return CommandRegistry.action((commands, command, directory) -> commands.fg(command));
+            case "wait":
+                return CommandRegistry.action((commands, command, directory) -> commands.waitJobs(command));
+            case "kill":
+                return CommandRegistry.action((commands, command, directory) -> commands.kill(command));
+            case "help":
+                return CommandRegistry.action((commands, command, directory) -> commands.help());
+            case "pwd":
+                return CommandRegistry.action((commands, command, directory) -> commands.pwd(directory));
+            case "cd":
+                return CommandRegistry.action((commands, command, directory) -> currentDirectory = commands.cd(command, directory));
+            case "ls":
+                return CommandRegistry.action(Commands::ls);
+            case "ls-a":
+                return CommandRegistry.action((commands, command, directory) -> commands.lsa(directory));
+            case "ls-r":
+                return CommandRegistry.action(Commands::lsr);
+            case "mkdir":
+                return CommandRegistry.action(Commands::mkdir);
+            case "rmdir":
+                return CommandRegistry.action(Commands::rmdir);
+            case "touch":
+                return CommandRegistry.action((commands, command, directory) -> {
+                    if (command.length > 1) {
+                        commands.touch(command[1], directory); // Pass only the second element
+                    } else {
+                        commands.output().println("Usage: touch <filename>");
+                    }
+                });
+            case "mv":
+                return CommandRegistry.action(Commands::mv);
+            case "cp":
+                return CommandRegistry.action(Commands::cp);
+            case "rm":
+                return CommandRegistry.action(Commands::rm);
+            case "cat":
+                return CommandRegistry.action(Commands::cat);
+            case "head":
+                return CommandRegistry.action(Commands::head);
+            case "tail":
+                return CommandRegistry.action(Commands::tail);
+            case "echo":
+                return CommandRegistry.action((commands, command, directory) -> commands.echo(command));
+            case "grep":
+                return CommandRegistry.action((commands, command, directory) -> {
+                    if (command.length >= 2) {
+                        commands.grep(command, directory); // Pass the full command array
+                    } else {
+                        commands.output().println("Usage: grep [-c] [-n] [-i] [-E] [-f <patterns>] <pattern> <filename>");
+                    }
+                });
+            default:
+                return null;
+        }
+    }
+
+    // Commands that act on the session itself and make no sense on a background thread
+    private static final Set<String> FOREGROUND_ONLY = Set.of("exit", "cd", "jobs", "fg", "wait", "kill");
+
+    // Commands that change the session; a pipeline runs every stage on a thread of its own
+    private static final Set<String> NOT_IN_PIPELINE = Set.of("exit", "cd");
+
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("-f")) {
+            if (args.length < 2) {
+                System.err.println("Usage: -f <script>");
+                System.exit(2);
+            }
+            System.exit(runScript(Paths.get(args[1])));
+        }
+        if (args.length > 0 && args[0].equals("-c")) {
+            if (args.length < 2) {
+                System.err.println("Usage: -c <command line>");
+                System.exit(2);
+            }
+            System.exit(runOnce(String.join(" ", Arrays.asList(args).subList(1, args.length))));
+        }
+
         Scanner scanner = new Scanner(System.in);
         Commands commands = new Commands();
+        commands.enableWriterPool();
+        // Queued redirects still reach their files if input ends or the process is interrupted
+        Output console = commands.output();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            commands.closeWriters();
+            console.flush();
+        }));
 
-        System.out.println("Welcome to our Command line interpreter using Java. Type 'help' for available commands.");
+        console.println("Welcome to our Command line interpreter using Java. Type 'help' for available commands.");
 
+        // Parsed into the same buffers every time
+        CommandLine line = new CommandLine();
         while (true) {
-            System.out.print(currentDirectory + " > ");
-            String input = scanner.nextLine().trim();
-            String[] command = input.split(" ");
-
-            if (command.length == 0) {
+            commands.reportRedirectErrors();
+            commands.reportFinishedJobs();
+            console.print(currentDirectory + " > ");
+            // The one flush point of the interactive loop: whatever the last command printed, then the prompt
+            console.flush();
+            String input = scanner.nextLine();
+            if (!line.parse(input)) {
+                console.println(line.error());
+                continue;
+            }
+            if (line.isEmpty()) {
                 continue; // Skip if input is empty
             }
-            if(input.contains(">")) {
-                commands.redirect(input);
+            if (line.background()) {
+                startJob(input, line, commands, currentDirectory);
+                continue;
+            }
+            if (!dispatch(line, commands, currentDirectory)) {
+                console.flush();
+                scanner.close();
+                return;
             }
+        }
+    }
 
-            try {
+    /**
+     * Runs one parsed line, a pipeline, a redirect or a single command, in the given directory.
+     *
+     * @return false when the command asks the interpreter to exit
+     */
+    static boolean dispatch(CommandLine line, Commands commands, Path directory) {
+        if (line.stages() == 1 && line.redirect() == CommandLine.Redirect.NONE) {
+            return execute(line.command(0), commands, directory);
+        }
+        return run(line.commands(), line.redirect(), line.target(), commands, directory);
+    }
+
+    /**
+     * Runs the stages of a line: one command, or a pipeline of several; with a redirect, echo and cat write
+     * to the file themselves and any other command or pipeline sends what it prints there.
+     */
+    static boolean run(String[][] stages, CommandLine.Redirect redirect, String target, Commands commands, Path directory) {
+        boolean append = redirect == CommandLine.Redirect.APPEND;
+        if (redirect != CommandLine.Redirect.NONE && stages.length == 1 && writesItself(stages[0])) {
+            redirect(stages[0], target, append, commands, directory);
+            return true;
+        }
+        if (redirect != CommandLine.Redirect.NONE) {
+            try (PrintStream file = commands.openOutput(directory.resolve(target), append)) {
+                Commands toFile = commands.withStreams(null, file);
+                if (stages.length == 1) {
+                    return execute(stages[0], toFile, directory);
+                }
+                Pipeline.run(stages, toFile, directory);
+            } catch (IOException e) {
+                commands.output().println("Error writing to file: " + e.getMessage());
+            }
+            return true;
+        }
+        if (stages.length > 1) {
+            Pipeline.run(stages, commands, directory);
+            return true;
+        }
+        return execute(stages[0], commands, directory);
+    }
+
+    /** Why a line cannot run in the background, or null if it can. */
+    static String backgroundError(String[][] stages) {
+        String name = find(stages, FOREGROUND_ONLY);
+        return name == null ? null : name + " cannot run in the background";
+    }
+
+    /** Why stages cannot run as a pipeline, or null if they can. */
+    static String pipelineError(String[][] stages) {
+        String name = find(stages, NOT_IN_PIPELINE);
+        return name == null ? null : name + " cannot run in a pipeline";
+    }
+
+    // The first of names that one of the stages runs, looking through time; null if none does
+    private static String find(String[][] stages, Set<String> names) {
+        for (String[] command : stages) {
+            String name = command.length > 1 && command[0].equals("time") ? command[1] : command[0];
+            if (names.contains(name)) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    /** Parses {@code input}, which ends with '&', and starts it as a background job in {@code directory}. */
+    static void startJob(String input, Commands commands, Path directory) {
+        CommandLine line = new CommandLine();
+        if (!line.parse(input)) {
+            commands.output().println(line.error());
+            return;
+        }
+        startJob(input, line, commands, directory);
+    }
+
+    /** Starts a parsed background line as a job in {@code directory}. */
+    static void startJob(String input, CommandLine line, Commands commands, Path directory) {
+        startJob(input, line.commands(), line.redirect(), line.target(), commands, directory);
+    }
+
+    /**
+     * Starts the already parsed stages of {@code input}, a line ending with '&', as a job in {@code directory}.
+     * A redirect at the end sends everything the job prints to that file; otherwise the output is kept for
+     * fg and wait. echo and cat keep their usual redirect behaviour.
+     */
+    static void startJob(String input, String[][] stages, CommandLine.Redirect redirect, String target,
+                         Commands commands, Path directory) {
+        String error = backgroundError(stages);
+        if (error != null) {
+            commands.output().println(error);
+            return;
+        }
+        String text = input.substring(0, input.lastIndexOf('&')).trim();
+        if (redirect != CommandLine.Redirect.NONE && !(stages.length == 1 && writesItself(stages[0]))) {
+            commands.startJob(text, directory, directory.resolve(target), redirect == CommandLine.Redirect.APPEND,
+                    jobCommands -> run(stages, CommandLine.Redirect.NONE, null, jobCommands, directory));
+        } else {
+            commands.startJob(text, directory, null, false,
+                    jobCommands -> run(stages, redirect, target, jobCommands, directory));
+        }
+    }
 
+    /** The working directory of the interactive session. */
+    static Path currentDirectory() {
+        return currentDirectory;
+    }
 
-                switch (command[0]) {
-                    case "exit":
-                        System.out.println("Exiting CLI...");
-                        scanner.close();
-                        return;
-                    case "help":
-                        commands.help();
-                        break;
-                    case "pwd":
-                        commands.pwd(currentDirectory);
-                        break;
-                    case "cd":
-                        currentDirectory = commands
-                                .cd(command, currentDirectory);
-                        break;
-                    case "ls":
-                        commands.ls(currentDirectory);
-                        break;
-                    case "ls-a":
-                        commands.lsa(currentDirectory);
-                        break;
-                    case "ls-r":
-                        commands.lsr(currentDirectory);
-                        break;
-                    case "mkdir":
-                        commands.mkdir(command, currentDirectory);
-                        break;
-                    case "rmdir":
-                        commands.rmdir(command, currentDirectory);
-                        break;
-                    case "touch":
-                        if (command.length > 1) {
-                            commands.touch(command[1], currentDirectory); // Pass only the second element
-                        } else {
-                            System.out.println("Usage: touch <filename>");
-                        }
-                        break;
-                    case "mv":
-                        commands.mv(command, currentDirectory);
-                        break;
-                    case "rm":
-                        if (command.length > 1) {
-                            commands.rm(command[1], currentDirectory); // Pass only the second element
-                        } else {
-                            System.out.println("Usage: rm <filename>");
-                        }
-                        break;
-                    case "cat":
-                        commands.cat(command, currentDirectory);
-                        break;
-                    case "grep":
-                        if (command.length >= 3) {
-                            commands.grep(command, currentDirectory); // Pass the full command array
-                        } else {
-                            System.out.println("Usage: grep <pattern> <filename>");
-                        }
-                        break;
-                    default:
-                        System.out.println("Unknown command: '" + command[0] + "' , please try again or use 'help' to browse available commands.");
+    /**
+     * Runs one command line, as given after -c, and returns the exit status: 1 for an unknown command,
+     * 2 for a line that does not parse. There is no banner, no prompt, no Scanner on standard input and no
+     * background writer for redirects, so a short command loads little beyond what it uses itself.
+     */
+    static int runOnce(String input) {
+        Commands commands = new Commands();
+        try {
+            CommandLine line = new CommandLine();
+            if (!line.parse(input)) {
+                commands.output().println(line.error());
+                return 2;
+            }
+            if (line.isEmpty()) {
+                return 0;
+            }
+            int status = 0;
+            for (int i = 0; i < line.stages(); i++) {
+                if (!isCommand(line.command(i)[0])) {
+                    status = 1;
                 }
-            } catch (Exception e) {
-                // Handle generic exceptions, including IOException if thrown from any command methods
-                System.err.println("An error occurred: " + e.getMessage());
             }
+            // Nobody reads the session statistics after a one-shot command, except through time
+            commands.metrics().trackAllocations(line.isNamed(0, "time"));
+            if (line.background()) {
+                startJob(input, line, commands, currentDirectory);
+                commands.waitJobs(new String[] {"wait"});
+            } else {
+                dispatch(line, commands, currentDirectory);
+            }
+            return status;
+        } finally {
+            commands.closeWriters();
+            commands.output().flush();
+        }
+    }
+
+    /**
+     * Runs a script without the prompt. Output goes through the console's buffer, which is flushed at the
+     * end (or when full) instead of after every command.
+     *
+     * @return the process exit status
+     */
+    static int runScript(Path file) {
+        Script script;
+        try {
+            script = Script.parse(file);
+        } catch (IOException e) {
+            System.err.println("Cannot read script " + file + ": " + e.getMessage());
+            return 2;
+        }
+        List<String> errors = script.validate();
+        if (!errors.isEmpty()) {
+            errors.forEach(System.err::println);
+            return 1;
+        }
+
+        // Flushed only when the buffer fills up and at the end, not after every command
+        Commands commands = new Commands();
+        commands.enableWriterPool();
+        try {
+            script.run(commands);
+            // Background jobs finish and report before the script's output is flushed
+            commands.waitJobs(new String[] {"wait"});
+        } finally {
+            commands.closeWriters();
+            commands.output().flush();
+        }
+        return 0;
+    }
+
+    static boolean isCommand(String name) {
+        return REGISTRY.lookup(name) != null;
+    }
+
+    // echo and cat open a redirect target themselves: echo through the writer pool, cat by channel transfer
+    private static boolean writesItself(String[] command) {
+        return command[0].equals("echo") || command[0].equals("cat");
+    }
+
+    // Redirects are timed like any other command, under the name "redirect"
+    static void redirect(String[] command, String target, boolean append, Commands commands, Path directory) {
+        Metrics.Sample sample = commands.metrics().begin("redirect");
+        try {
+            commands.redirect(command, target, append, directory);
+        } finally {
+            commands.metrics().end(sample);
+        }
+    }
+
+    /**
+     * Dispatches one parsed command line.
+     *
+     * @return false when the command asks the interpreter to exit
+     */
+    static boolean execute(String[] command, Commands commands) {
+        return execute(command, commands, currentDirectory);
+    }
+
+    /**
+     * Dispatches one parsed command line with {@code directory} as the working directory;
+     * background jobs pass the directory they were started in.
+     */
+    static boolean execute(String[] command, Commands commands, Path directory) {
+        CommandRegistry.Entry entry = REGISTRY.lookup(command[0]);
+        if (entry == null) {
+            commands.output().println("Unknown command: '" + command[0] + "' , please try again or use 'help' to browse available commands.");
+            return true;
+        }
+
+        // "--limit N" caps what the command prints; it is not one of the command's own options
+        long limit = -1;
+        int at = entry.timed ? Arrays.asList(command).indexOf("--limit") : -1;
+        if (at > 0) {
+            try {
+                limit = Long.parseLong(command[at + 1]);
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                limit = -1;
+            }
+            if (limit < 0) {
+                commands.output().println(command[0] + ": --limit needs a number of lines");
+                return true;
+            }
+            String[] rest = new String[command.length - 2];
+            System.arraycopy(command, 0, rest, 0, at);
+            System.arraycopy(command, at + 2, rest, at, command.length - at - 2);
+            command = rest;
+        }
+
+        Output output = commands.output();
+        Metrics metrics = commands.metrics();
+        Metrics.Sample sample = null;
+        try {
+            if (entry.timed) {
+                // Any command may read a file that an earlier redirect is still writing
+                commands.flushRedirects();
+                sample = metrics.begin(entry.name);
+            }
+            if (limit >= 0) {
+                output.limit(limit);
+            }
+            return entry.handler().run(commands, command, directory);
+        } catch (Exception e) {
+            // Handle generic exceptions, including IOException if thrown from any command methods
+            System.err.println("An error occurred: " + e.getMessage());
+        } finally {
+            if (limit >= 0) {
+                long dropped = output.endLimit();
+                if (dropped > 0) {
+                    output.println("... " + dropped + " more lines not shown");
+                }
+            }
+            if (sample != null) {
+                metrics.end(sample);
+            }
+        }
+        return true;
+    }
+
+    private static boolean exit(Commands commands, String[] command, Path directory) throws IOException {
+        if (command.length >= 3 && command[1].equals("--stats")) {
+            Path statsFile = directory.resolve(command[2]);
+            Files.writeString(statsFile, commands.metrics().json() + System.lineSeparator());
+            commands.output().println("Statistics written to " + statsFile);
+        }
+        commands.closeWriters();
+        commands.output().println("Exiting CLI...");
+        return false;
+    }
+
+    // Runs the rest of the line, then prints the time, I/O and allocation of that one command
+    private static boolean time(Commands commands, String[] command, Path directory) {
+        if (command.length < 2) {
+            commands.output().println("Usage: time <command>");
+            return true;
+        }
+        boolean keepRunning = execute(Arrays.copyOfRange(command, 1, command.length), commands, directory);
+        Metrics.Sample sample = commands.metrics().lastSample();
+        if (sample != null && isCommand(command[1])) {
+            commands.output().println(sample.breakdown());
         }
+        return keepRunning;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,251 @@
+package org.os;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-command counters for one interpreter session.
+ * Each dispatched command opens a {@link Sample} on its thread; while it is open, Commands report
+ * bytes and files against it. Closing the sample folds it into the session totals.
+ * Everything is lock-free (LongAdder and atomic histogram buckets) so recording costs a few nanoseconds.
+ */
+public class Metrics {
+
+    /** Counters for a single invocation. Only touched by the thread that opened it. */
+    public static final class Sample {
+        final String command;
+        final Sample parent;
+        final long startNanos;
+        final long startAllocated;
+        long nanos;
+        long bytesRead;
+        long bytesWritten;
+        long filesTouched;
+        long allocatedBytes;
+
+        Sample(String command, Sample parent, long startAllocated) {
+            this.command = command;
+            this.parent = parent;
+            this.startAllocated = startAllocated;
+            this.startNanos = System.nanoTime();
+        }
+
+        public String breakdown() {
+            return String.format(Locale.ROOT, "%s: real %.3f ms, read %s, written %s, files %d, allocated %s",
+                    command, nanos / 1e6, Commands.humanSize(bytesRead), Commands.humanSize(bytesWritten),
+                    filesTouched, allocatedBytes < 0 ? "n/a" : Commands.humanSize(allocatedBytes));
+        }
+    }
+
+    static final class CommandStats {
+        final LongAdder invocations = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder bytesRead = new LongAdder();
+        final LongAdder bytesWritten = new LongAdder();
+        final LongAdder filesTouched = new LongAdder();
+        final LongAdder allocatedBytes = new LongAdder();
+        final Histogram latency = new Histogram();
+    }
+
+    private final Map<String, CommandStats> commands = new ConcurrentHashMap<>();
+    private final ThreadLocal<Sample> current = new ThreadLocal<>();
+    private volatile boolean allocations = true;
+    private final ThreadLocal<Sample> last = new ThreadLocal<>();
+
+    /**
+     * Whether samples measure allocation. On by default; reading the allocation counter loads the management
+     * API, which costs a one-shot command more than the command itself.
+     */
+    public void trackAllocations(boolean enabled) {
+        allocations = enabled;
+    }
+
+    public Sample begin(String command) {
+        Sample sample = new Sample(command, current.get(), allocations ? allocatedBytes() : -1);
+        current.set(sample);
+        return sample;
+    }
+
+    public void end(Sample sample) {
+        sample.nanos = System.nanoTime() - sample.startNanos;
+        long allocated = sample.startAllocated < 0 ? -1 : allocatedBytes();
+        sample.allocatedBytes = allocated < 0 ? -1 : allocated - sample.startAllocated;
+        if (sample.parent == null) {
+            current.remove();
+        } else {
+            current.set(sample.parent);
+        }
+        last.set(sample);
+
+        CommandStats stats = commands.computeIfAbsent(sample.command, name -> new CommandStats());
+        stats.invocations.increment();
+        stats.nanos.add(sample.nanos);
+        stats.bytesRead.add(sample.bytesRead);
+        stats.bytesWritten.add(sample.bytesWritten);
+        stats.filesTouched.add(sample.filesTouched);
+        if (sample.allocatedBytes > 0) {
+            stats.allocatedBytes.add(sample.allocatedBytes);
+        }
+        stats.latency.record(sample.nanos);
+    }
+
+    /** The most recent sample closed on this thread, used by the time prefix. */
+    public Sample lastSample() {
+        return last.get();
+    }
+
+    // Called from Commands on the dispatching thread; a no-op outside a sample
+
+    public void bytesRead(long n) {
+        Sample sample = current.get();
+        if (sample != null) {
+            sample.bytesRead += n;
+        }
+    }
+
+    public void bytesWritten(long n) {
+        Sample sample = current.get();
+        if (sample != null) {
+            sample.bytesWritten += n;
+        }
+    }
+
+    public void filesTouched(long n) {
+        Sample sample = current.get();
+        if (sample != null) {
+            sample.filesTouched += n;
+        }
+    }
+
+    /**
+     * Adds to a command's totals outside any sample, for writes another thread finishes after the command
+     * returned: a queued redirect counts once the writer has put it in its file.
+     */
+    public void written(String command, long bytes, long files) {
+        CommandStats stats = commands.computeIfAbsent(command, name -> new CommandStats());
+        stats.bytesWritten.add(bytes);
+        stats.filesTouched.add(files);
+    }
+
+    public void reset() {
+        commands.clear();
+    }
+
+    /** Human-readable table with one row per command, sorted by name. */
+    public String table() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "%-10s %7s %11s %9s %9s %9s %10s %10s %8s %10s%n",
+                "command", "count", "total ms", "p50 ms", "p99 ms", "max ms", "read", "written", "files", "allocated"));
+        for (Map.Entry<String, CommandStats> entry : new TreeMap<>(commands).entrySet()) {
+            CommandStats s = entry.getValue();
+            sb.append(String.format(Locale.ROOT, "%-10s %7d %11.3f %9.3f %9.3f %9.3f %10s %10s %8d %10s%n",
+                    entry.getKey(), s.invocations.sum(), s.nanos.sum() / 1e6,
+                    s.latency.percentile(50) / 1e6, s.latency.percentile(99) / 1e6, s.latency.max() / 1e6,
+                    Commands.humanSize(s.bytesRead.sum()), Commands.humanSize(s.bytesWritten.sum()),
+                    s.filesTouched.sum(), Commands.humanSize(s.allocatedBytes.sum())));
+        }
+        return sb.toString();
+    }
+
+    /** The same data as {@link #table()} as a JSON object keyed by command name; times are in nanoseconds. */
+    public String json() {
+        StringBuilder sb = new StringBuilder("{");
+        boolean first = true;
+        for (Map.Entry<String, CommandStats> entry : new TreeMap<>(commands).entrySet()) {
+            CommandStats s = entry.getValue();
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append("\n  \"").append(entry.getKey().replace("\\", "\\\\").replace("\"", "\\\"")).append("\": {")
+                    .append("\"count\": ").append(s.invocations.sum())
+                    .append(", \"totalNanos\": ").append(s.nanos.sum())
+                    .append(", \"p50Nanos\": ").append(s.latency.percentile(50))
+                    .append(", \"p99Nanos\": ").append(s.latency.percentile(99))
+                    .append(", \"maxNanos\": ").append(s.latency.max())
+                    .append(", \"bytesRead\": ").append(s.bytesRead.sum())
+                    .append(", \"bytesWritten\": ").append(s.bytesWritten.sum())
+                    .append(", \"filesTouched\": ").append(s.filesTouched.sum())
+                    .append(", \"allocatedBytes\": ").append(s.allocatedBytes.sum())
+                    .append('}');
+        }
+        return sb.append(first ? "}" : "\n}").toString();
+    }
+
+    // Bytes allocated by the current thread so far, or -1 when the JVM cannot tell
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    /**
+     * Log-linear latency histogram in the spirit of HdrHistogram: values are bucketed by their highest
+     * set bit and the next SUB_BITS bits, which bounds the relative error to about 6%.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private volatile long max;
+
+        void record(long value) {
+            counts.incrementAndGet(bucket(Math.max(value, 0)));
+            total.increment();
+            if (value > max) {
+                synchronized (this) {
+                    if (value > max) {
+                        max = value;
+                    }
+                }
+            }
+        }
+
+        long max() {
+            return max;
+        }
+
+        long percentile(double p) {
+            long n = total.sum();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(n * p / 100.0);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int msb = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (msb - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int msb = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            long width = 1L << (msb - SUB_BITS);
+            return ((SUB_BUCKETS + sub) << (msb - SUB_BITS)) + width - 1;
+        }
+    }
+}
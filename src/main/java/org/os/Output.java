@@ -0,0 +1,349 @@
+package org.os;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Where commands write. Text is encoded straight into one large reusable byte buffer, a whole string at a
+ * time with a fast path for ASCII, and the buffer goes to the underlying stream only when it fills up or at
+ * an explicit flush point: before the prompt, at the end of a pipeline stage, job or script, and whenever a
+ * command streaming piped input runs out of it. System.out instead encodes through a chain of writers and
+ * flushes on every line.
+ *
+ * <p>It is a PrintStream so it can be handed to anything that writes to one. A capturing instance keeps
+ * everything in memory, which is how tests read what a command printed. An optional line limit drops
+ * output past the first N lines without encoding or writing it, and counts what was dropped.
+ */
+public class Output extends PrintStream {
+
+    static final int BUFFER_SIZE = 256 * 1024;
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private static Output console;
+
+    // Null for a capturing instance, whose buffer simply grows
+    private final OutputStream sink;
+    // False for the console, whose file descriptor outlives any one command
+    private final boolean closeSink;
+    private byte[] buffer;
+    private int count;
+    private boolean failed;
+
+    // -1 when output is not limited
+    private long limit = -1;
+    private long lines;
+    private long dropped;
+
+    private Output(OutputStream sink, int size, boolean closeSink) {
+        super(sink != null ? sink : OutputStream.nullOutputStream(), false, StandardCharsets.UTF_8);
+        this.sink = sink;
+        this.closeSink = closeSink;
+        this.buffer = new byte[size];
+    }
+
+    /** The process's standard output, shared by every command that has no other destination. */
+    public static synchronized Output console() {
+        if (console == null) {
+            console = new Output(new FileOutputStream(FileDescriptor.out), BUFFER_SIZE, false);
+        }
+        return console;
+    }
+
+    /** Buffered output to stream; an Output is returned as it is. */
+    public static Output to(OutputStream stream) {
+        if (stream instanceof Output output) {
+            return output;
+        }
+        return new Output(stream, BUFFER_SIZE, true);
+    }
+
+    /** Output kept in memory and read back with {@link #text()}. */
+    public static Output capture() {
+        return new Output(null, 8192, false);
+    }
+
+    /** Everything a capturing instance has been sent, as text. */
+    public synchronized String text() {
+        return new String(buffer, 0, count, StandardCharsets.UTF_8);
+    }
+
+    /** Forgets what a capturing instance holds. */
+    public synchronized void reset() {
+        count = 0;
+    }
+
+    /** From now on keeps only the first {@code maxLines} lines, until {@link #endLimit()}. */
+    public synchronized void limit(long maxLines) {
+        limit = maxLines;
+        lines = 0;
+        dropped = 0;
+    }
+
+    /** Lifts the line limit and returns how many lines it dropped. */
+    public synchronized long endLimit() {
+        limit = -1;
+        return dropped;
+    }
+
+    @Override
+    public synchronized void print(String s) {
+        if (s == null) {
+            s = "null";
+        }
+        if (limit >= 0 && lines >= limit) {
+            dropped += newlines(s);
+            return;
+        }
+        int start = encode(s);
+        if (limit >= 0) {
+            count = start + admit(buffer, start, count - start);
+        }
+    }
+
+    @Override
+    public synchronized void println(String s) {
+        print(s);
+        newLine();
+    }
+
+    @Override
+    public synchronized void println() {
+        newLine();
+    }
+
+    private void newLine() {
+        write(NEWLINE, 0, NEWLINE.length);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        if (limit >= 0) {
+            len = admit(b, off, len);
+        }
+        if (len == 0) {
+            return;
+        }
+        if (sink != null && len >= buffer.length) {
+            // Larger than the buffer: no point copying it through
+            drainBuffer();
+            try {
+                sink.write(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+            }
+            return;
+        }
+        ensure(len);
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public void write(int b) {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void writeBytes(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public synchronized void flush() {
+        drainBuffer();
+        if (sink != null) {
+            try {
+                sink.flush();
+            } catch (IOException e) {
+                failed = true;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        flush();
+        if (sink != null && closeSink) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                failed = true;
+            }
+        }
+    }
+
+    /** True once a write failed, for instance because the reading end of a pipe went away. */
+    @Override
+    public synchronized boolean checkError() {
+        return failed || (sink instanceof PrintStream stream && stream.checkError());
+    }
+
+    @Override
+    public void print(boolean b) {
+        print(String.valueOf(b));
+    }
+
+    @Override
+    public void print(char c) {
+        print(String.valueOf(c));
+    }
+
+    @Override
+    public void print(int i) {
+        print(String.valueOf(i));
+    }
+
+    @Override
+    public void print(long l) {
+        print(String.valueOf(l));
+    }
+
+    @Override
+    public void print(float f) {
+        print(String.valueOf(f));
+    }
+
+    @Override
+    public void print(double d) {
+        print(String.valueOf(d));
+    }
+
+    @Override
+    public void print(char[] s) {
+        print(new String(s));
+    }
+
+    @Override
+    public void print(Object obj) {
+        print(String.valueOf(obj));
+    }
+
+    @Override
+    public void println(boolean x) {
+        println(String.valueOf(x));
+    }
+
+    @Override
+    public void println(char x) {
+        println(String.valueOf(x));
+    }
+
+    @Override
+    public void println(int x) {
+        println(String.valueOf(x));
+    }
+
+    @Override
+    public void println(long x) {
+        println(String.valueOf(x));
+    }
+
+    @Override
+    public void println(float x) {
+        println(String.valueOf(x));
+    }
+
+    @Override
+    public void println(double x) {
+        println(String.valueOf(x));
+    }
+
+    @Override
+    public void println(char[] x) {
+        println(new String(x));
+    }
+
+    @Override
+    public void println(Object x) {
+        println(String.valueOf(x));
+    }
+
+    // Appends the UTF-8 bytes of s in one piece and returns where they start, which a drain may have moved:
+    // ASCII is copied char by char, only the rest goes through the encoder
+    private int encode(String s) {
+        int n = s.length();
+        ensure(n);
+        int start = count;
+        int i = 0;
+        while (i < n) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            buffer[count++] = (byte) c;
+            i++;
+        }
+        if (i < n) {
+            byte[] rest = s.substring(i).getBytes(StandardCharsets.UTF_8);
+            if (count + rest.length > buffer.length) {
+                // Making room would drain the ASCII part already copied; start over with the whole string
+                count = start;
+                rest = s.getBytes(StandardCharsets.UTF_8);
+                ensure(rest.length);
+                start = count;
+            }
+            System.arraycopy(rest, 0, buffer, count, rest.length);
+            count += rest.length;
+        }
+        return start;
+    }
+
+    // Makes room for n more bytes, writing the buffer out or, when capturing or for one huge string, growing it
+    private void ensure(int n) {
+        if (count + n <= buffer.length) {
+            return;
+        }
+        drainBuffer();
+        if (count + n > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + n));
+        }
+    }
+
+    private void drainBuffer() {
+        if (sink == null || count == 0) {
+            return;
+        }
+        try {
+            sink.write(buffer, 0, count);
+        } catch (IOException e) {
+            failed = true;
+        }
+        count = 0;
+    }
+
+    // Under a limit: how much of b to keep, ending after line number `limit`; counts the lines cut off
+    private int admit(byte[] b, int off, int len) {
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            if (lines >= limit) {
+                for (int j = i; j < end; j++) {
+                    if (b[j] == '\n') {
+                        dropped++;
+                    }
+                }
+                return i - off;
+            }
+            if (b[i] == '\n') {
+                lines++;
+            }
+        }
+        return len;
+    }
+
+    private static long newlines(String s) {
+        long n = 0;
+        for (int i = s.indexOf('\n'); i >= 0; i = s.indexOf('\n', i + 1)) {
+            n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,79 @@
+package org.os;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Session cache of compiled grep matchers, so a script running the same grep thousands of times
+ * compiles its regex or automaton once. Pattern files are keyed by path, size and mtime,
+ * so editing the file recompiles it on the next use.
+ */
+public class PatternCache {
+
+    static final int MAX_ENTRIES = 256;
+
+    private final Map<String, LineMatcher> matchers = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LineMatcher> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private long hits;
+    private long misses;
+
+    public LineMatcher pattern(String pattern, boolean regex, boolean ignoreCase) {
+        String key = (regex ? "E" : "F") + (ignoreCase ? "i:" : ":") + pattern;
+        synchronized (this) {
+            LineMatcher cached = matchers.get(key);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+        // Compile outside the lock; a concurrent duplicate compile is harmless
+        LineMatcher compiled = regex ? LineMatcher.regex(pattern, ignoreCase) : LineMatcher.literal(pattern, ignoreCase);
+        synchronized (this) {
+            matchers.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    /** Compiles every non-blank line of the file into one matcher: Aho-Corasick for literals, an alternation for regexes. */
+    public LineMatcher patternFile(Path file, boolean regex, boolean ignoreCase) throws IOException {
+        Path absolute = file.toAbsolutePath().normalize();
+        BasicFileAttributes attrs = Files.readAttributes(absolute, BasicFileAttributes.class);
+        String key = "f" + (regex ? "E" : "F") + (ignoreCase ? "i:" : ":") + absolute
+                + ":" + attrs.size() + ":" + attrs.lastModifiedTime().toMillis();
+        synchronized (this) {
+            LineMatcher cached = matchers.get(key);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+        List<String> patterns = new ArrayList<>();
+        for (String line : Files.readAllLines(absolute, StandardCharsets.UTF_8)) {
+            if (!line.isBlank()) {
+                patterns.add(line);
+            }
+        }
+        LineMatcher compiled = regex ? LineMatcher.anyOfRegex(patterns, ignoreCase) : LineMatcher.anyOf(patterns, ignoreCase);
+        synchronized (this) {
+            matchers.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    public synchronized String stats() {
+        return "compiled patterns: " + matchers.size() + "/" + MAX_ENTRIES + ", hits: " + hits + ", misses: " + misses;
+    }
+}
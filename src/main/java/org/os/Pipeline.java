@@ -0,0 +1,108 @@
+package org.os;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs {@code cmd1 | cmd2 | ...} with every stage on its own thread.
+ * Adjacent stages are connected by a bounded pipe, so data flows through as it is produced
+ * and a fast producer blocks instead of buffering its whole output in memory.
+ */
+public class Pipeline {
+
+    // Capacity of the pipe between two stages
+    static final int PIPE_BUFFER = 64 * 1024;
+
+    public static void run(String input, Commands commands) {
+        run(input, commands, Main.currentDirectory());
+    }
+
+    /** Runs the pipeline with {@code directory} as the working directory of every stage. */
+    public static void run(String input, Commands commands, Path directory) {
+        CommandLine line = new CommandLine();
+        if (!line.parse(input)) {
+            commands.output().println("Invalid pipeline: " + line.error());
+            return;
+        }
+        run(line.commands(), commands, directory);
+    }
+
+    /**
+     * Runs already parsed stages, each given as its command name followed by its arguments. Stages that
+     * change the session, cd and exit, are refused: they would do it from a stage thread.
+     */
+    static void run(String[][] stages, Commands commands, Path directory) {
+        String error = Main.pipelineError(stages);
+        if (error != null) {
+            commands.output().println(error);
+            return;
+        }
+        List<Thread> threads = new ArrayList<>();
+        InputStream upstream = null;
+        try {
+            for (int i = 0; i < stages.length; i++) {
+                String[] command = stages[i];
+                boolean last = i == stages.length - 1;
+
+                PipedInputStream downstream = null;
+                Output stageOut;
+                if (last) {
+                    stageOut = null; // the last stage writes wherever the caller's output goes
+                } else {
+                    downstream = new PipedInputStream(PIPE_BUFFER);
+                    stageOut = Output.to(new PipedOutputStream(downstream));
+                }
+
+                Commands stageCommands = commands.withStreams(upstream, last ? commands.output() : stageOut);
+                InputStream stageIn = upstream;
+                Thread thread = new Thread(() -> {
+                    try {
+                        Main.execute(command, stageCommands, directory);
+                    } finally {
+                        // Closing our end signals end-of-input downstream and unblocks the writer upstream
+                        if (stageOut != null) {
+                            stageOut.close();
+                        } else {
+                            stageCommands.output().flush();
+                        }
+                        closeQuietly(stageIn);
+                    }
+                }, "pipeline-" + i + "-" + command[0]);
+                thread.setDaemon(true);
+                threads.add(thread);
+                upstream = downstream;
+            }
+        } catch (IOException e) {
+            commands.output().println("Failed to set up pipeline: " + e.getMessage());
+            return;
+        }
+
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                // Only kill interrupts a pipeline; the stages poll the same flag and are interrupted out of their pipes
+                Thread.currentThread().interrupt();
+                threads.forEach(Thread::interrupt);
+                commands.killed(); // seen: the job is reported as terminated
+                return;
+            }
+        }
+    }
+
+    private static void closeQuietly(InputStream stream) {
+        if (stream == null) {
+            return;
+        }
+        try {
+            stream.close();
+        } catch (IOException ignored) {
+            // Nothing useful to do once the stage has finished
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package org.os;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * grep -r: walks a tree and searches its files concurrently on a bounded work-stealing pool.
+ * Each file's matches are printed as one block as soon as that file is done, so results stream out
+ * while the walk is still running. Files that look binary (a NUL byte in the first block) are skipped.
+ */
+public class RecursiveGrep {
+
+    // Bytes inspected to decide whether a file is binary
+    static final int SNIFF_SIZE = 8192;
+
+    private final LineMatcher matcher;
+    private final boolean lineNumbers;
+    private final boolean countOnly;
+    private final boolean group;
+    private final List<PathMatcher> includes = new ArrayList<>();
+    private final List<PathMatcher> excludes = new ArrayList<>();
+    private BooleanSupplier stop = () -> false;
+
+    final LongAdder filesSearched = new LongAdder();
+    final LongAdder binarySkipped = new LongAdder();
+    final LongAdder bytesSearched = new LongAdder();
+    final LongAdder failures = new LongAdder();
+
+    public RecursiveGrep(LineMatcher matcher, boolean lineNumbers, boolean countOnly, boolean group) {
+        this.matcher = matcher;
+        this.lineNumbers = lineNumbers;
+        this.countOnly = countOnly;
+        this.group = group;
+    }
+
+    /** Only search files whose name matches one of the include globs (all files when there are none). */
+    public void include(String glob) {
+        includes.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+    }
+
+    /** Never search files whose name matches the glob. */
+    public void exclude(String glob) {
+        excludes.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+    }
+
+    /** Ends the search early once stop returns true: the walk stops and queued files are not searched. */
+    public RecursiveGrep stopWhen(BooleanSupplier stop) {
+        this.stop = stop;
+        return this;
+    }
+
+    /**
+     * Searches every regular file under root. Paths are printed relative to base.
+     */
+    public void search(Path root, Path base, PrintStream out) throws IOException {
+        int workers = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newWorkStealingPool(workers);
+        // Bound the files queued ahead of the searchers so memory stays flat on huge trees
+        Semaphore inFlight = new Semaphore(workers * 4);
+        Phaser pending = new Phaser(1);
+        try {
+            new TreeWalker().stopWhen(stop).walkParallel(root, new TreeWalker.Visitor() {
+                @Override
+                public void visit(Path path, BasicFileAttributes attrs, int depth) {
+                    if (!attrs.isRegularFile() || !selected(path.getFileName())) {
+                        return;
+                    }
+                    inFlight.acquireUninterruptibly();
+                    pending.register();
+                    pool.execute(() -> {
+                        try {
+                            searchFile(path, attrs.size(), base, out);
+                        } finally {
+                            inFlight.release();
+                            pending.arriveAndDeregister();
+                        }
+                    });
+                }
+
+                @Override
+                public void failed(Path dir, IOException e) {
+                    failures.increment();
+                }
+            });
+            pending.arriveAndAwaitAdvance();
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean selected(Path name) {
+        if (name == null) {
+            return false;
+        }
+        for (PathMatcher exclude : excludes) {
+            if (exclude.matches(name)) {
+                return false;
+            }
+        }
+        if (includes.isEmpty()) {
+            return true;
+        }
+        for (PathMatcher include : includes) {
+            if (include.matches(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void searchFile(Path file, long size, Path base, PrintStream out) {
+        if (stop.getAsBoolean()) {
+            return;
+        }
+        try {
+            if (isBinary(file)) {
+                binarySkipped.increment();
+                return;
+            }
+            String label = base.relativize(file).toString();
+            StringBuilder block = new StringBuilder();
+            if (group && !countOnly) {
+                block.append(label).append(System.lineSeparator());
+            }
+            String prefix = group ? "  " : label + ":";
+            long matches = new GrepEngine(matcher).stopWhen(stop).search(file, lineNumbers, countOnly, (lineNumber, line) -> {
+                block.append(prefix);
+                if (lineNumber > 0) {
+                    block.append(lineNumber).append(':');
+                }
+                block.append(line).append(System.lineSeparator());
+            });
+            filesSearched.increment();
+            bytesSearched.add(size);
+            if (matches == 0) {
+                return;
+            }
+            if (countOnly) {
+                block.append(label).append(':').append(matches).append(System.lineSeparator());
+            }
+            // One write per file keeps its lines together when several searchers finish at once
+            out.print(block);
+            out.flush();
+        } catch (IOException e) {
+            failures.increment();
+        }
+    }
+
+    static boolean isBinary(Path file) throws IOException {
+        byte[] head = new byte[SNIFF_SIZE];
+        int read;
+        try (InputStream stream = Files.newInputStream(file)) {
+            read = stream.readNBytes(head, 0, head.length);
+        }
+        for (int i = 0; i < read; i++) {
+            if (head[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,116 @@
+package org.os;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A command script parsed once into a plan of steps.
+ * Blank lines and lines starting with '#' are skipped. The whole plan is validated
+ * before anything runs, so a typo on line 90 000 does not leave a half-applied script behind.
+ */
+public class Script {
+
+    static final class Step {
+        final int lineNumber;
+        final String line;
+        // Null when the line failed to parse; error says why
+        final String[][] stages;
+        final CommandLine.Redirect redirect;
+        final String target;
+        final boolean background;
+        final String error;
+
+        Step(int lineNumber, String line, CommandLine parsed) {
+            this.lineNumber = lineNumber;
+            this.line = line;
+            this.error = parsed.error();
+            boolean ok = error == null;
+            this.stages = ok ? parsed.commands() : null;
+            this.redirect = ok ? parsed.redirect() : CommandLine.Redirect.NONE;
+            this.target = ok ? parsed.target() : null;
+            this.background = ok && parsed.background();
+        }
+    }
+
+    private final String name;
+    private final List<Step> steps;
+
+    private Script(String name, List<Step> steps) {
+        this.name = name;
+        this.steps = steps;
+    }
+
+    public static Script parse(Path file) throws IOException {
+        List<Step> steps = new ArrayList<>();
+        // One tokenizer for the whole file; its buffers are reused from line to line
+        CommandLine parsed = new CommandLine();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                parsed.parse(line);
+                steps.add(new Step(lineNumber, line, parsed));
+            }
+        }
+        return new Script(file.getFileName().toString(), steps);
+    }
+
+    public int size() {
+        return steps.size();
+    }
+
+    /** Returns one message per invalid step; an empty list means the script can run. */
+    public List<String> validate() {
+        List<String> errors = new ArrayList<>();
+        for (Step step : steps) {
+            if (step.error != null) {
+                errors.add(location(step) + step.error);
+                continue;
+            }
+            String error = step.background ? Main.backgroundError(step.stages)
+                    : step.stages.length > 1 ? Main.pipelineError(step.stages) : null;
+            if (error != null) {
+                errors.add(location(step) + error);
+            }
+            for (String[] command : step.stages) {
+                checkCommand(step, command[0], errors);
+            }
+        }
+        return errors;
+    }
+
+    private void checkCommand(Step step, String command, List<String> errors) {
+        if (!Main.isCommand(command)) {
+            errors.add(location(step) + "Unknown command '" + command + "'");
+        }
+    }
+
+    private String location(Step step) {
+        return name + ":" + step.lineNumber + ": ";
+    }
+
+    /**
+     * Runs every step in order.
+     *
+     * @return false if the script ran an exit command
+     */
+    public boolean run(Commands commands) {
+        for (Step step : steps) {
+            if (step.background) {
+                Main.startJob(step.line, step.stages, step.redirect, step.target, commands, Main.currentDirectory());
+            } else if (!Main.run(step.stages, step.redirect, step.target, commands, Main.currentDirectory())) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,59 @@
+package org.os;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * State that lives for one interpreter session and is shared by every Commands instance in it,
+ * including pipeline stages.
+ */
+class Session {
+    final Metrics metrics = new Metrics();
+    final DirectoryCache directoryCache = new DirectoryCache();
+    // Line indexes mapped this session, most recently used last
+    final Map<Path, LineIndex> lineIndexes = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, LineIndex> eldest) {
+            return size() > 64;
+        }
+    };
+    // Null unless the interpreter opted into asynchronous redirects; redirects are then written synchronously
+    volatile WriterPool writers;
+
+    // Created on first use, so a session that never needs them never loads their classes
+    private PatternCache patternCache;
+    private DiskUsage diskUsage;
+    private DuplicateFinder duplicates;
+    private Jobs jobs;
+
+    synchronized PatternCache patternCache() {
+        if (patternCache == null) {
+            patternCache = new PatternCache();
+        }
+        return patternCache;
+    }
+
+    // Per-directory summaries behind du, keyed by directory mtime
+    synchronized DiskUsage diskUsage() {
+        if (diskUsage == null) {
+            diskUsage = new DiskUsage();
+        }
+        return diskUsage;
+    }
+
+    // Content hashes behind dupes, keyed by file size and mtime
+    synchronized DuplicateFinder duplicates() {
+        if (duplicates == null) {
+            duplicates = new DuplicateFinder();
+        }
+        return duplicates;
+    }
+
+    // Background jobs started with '&'
+    synchronized Jobs jobs() {
+        if (jobs == null) {
+            jobs = new Jobs();
+        }
+        return jobs;
+    }
+}
@@ -0,0 +1,346 @@
+package org.os;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+/**
+ * snapshot: a manifest of every path under a directory with its type, size and mtime, and optionally the
+ * SHA-256 of every file, and the differences between two manifests.
+ *
+ * <p>Entries are written in the order of a sorted walk: pre-order, with the entries of each directory ordered
+ * by the UTF-8 bytes of their names. That is the order of the relative paths compared byte by byte with '/'
+ * below every other byte, so two manifests are diffed by merge-joining them as streams. Neither saving nor
+ * diffing holds more than a few directory listings in memory, however many entries the tree has. Paths are
+ * front-coded as in {@link FileIndex}: each stores only the bytes it does not share with the previous one.
+ *
+ * <pre>
+ * int magic, int version, byte options, int rootLength, root bytes
+ * per entry: byte 1, varint shared, varint suffixLength, suffix bytes, byte type, varlong size, varlong mtime,
+ *            [32 hash bytes if the type has HASHED set]
+ * byte 0, varlong count
+ * </pre>
+ */
+public final class Snapshot {
+
+    static final int MAGIC = 0x434C4953; // "CLIS"
+    static final int VERSION = 1;
+    static final byte HASHES = 1; // options: files were hashed
+    static final int HASH_LENGTH = 32;
+
+    static final byte FILE = 0;
+    static final byte DIRECTORY = 1;
+    static final byte SYMLINK = 2;
+    static final byte OTHER = 3;
+    static final byte HASHED = 0x10; // or-ed into the type when a hash follows
+
+    private Snapshot() {
+    }
+
+    /** One manifest entry as it is read; the key and hash arrays are reused from entry to entry. */
+    static final class Entry {
+        byte[] key = new byte[256];
+        int length;
+        byte type;
+        long size;
+        long modified;
+        final byte[] hash = new byte[HASH_LENGTH];
+        boolean hashed;
+
+        boolean isDirectory() {
+            return type == DIRECTORY;
+        }
+
+        String path() {
+            return new String(key, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    /** What save wrote. */
+    public static final class Saved {
+        public final long entries;
+        public final long files;
+        public final long bytes;
+        final long failures;
+        final String firstFailure;
+
+        Saved(long entries, long files, long bytes, long failures, String firstFailure) {
+            this.entries = entries;
+            this.files = files;
+            this.bytes = bytes;
+            this.failures = failures;
+            this.firstFailure = firstFailure;
+        }
+    }
+
+    /** Receives the differences between two manifests, in path order. */
+    interface DiffVisitor {
+        void added(Entry entry);
+
+        void removed(Entry entry);
+
+        // what lists the attributes that differ, e.g. "size 10 -> 20, mtime"
+        void changed(Entry before, Entry after, String what);
+    }
+
+    /** Counts from diff. */
+    public static final class Diff {
+        public long added;
+        public long removed;
+        public long changed;
+        public long unchanged;
+
+        public String summary() {
+            return added + " added, " + removed + " removed, " + changed + " changed, " + unchanged + " unchanged";
+        }
+    }
+
+    public static Saved save(Path root, Path file, boolean hashes) throws IOException {
+        return save(root, file, hashes, () -> false);
+    }
+
+    /**
+     * Walks root in sorted order and writes its manifest to file, streaming entries as they are visited.
+     *
+     * @param hashes also store the SHA-256 of every regular file
+     * @param stop ends the walk early once it returns true; file is then left as it was and null returned
+     */
+    public static Saved save(Path root, Path file, boolean hashes, BooleanSupplier stop) throws IOException {
+        Path base = root.toAbsolutePath().normalize();
+        Path target = file.toAbsolutePath().normalize();
+        Path parent = target.getParent();
+        Files.createDirectories(parent);
+        // Written next to the target and renamed over it, so an interrupted save never leaves half a manifest
+        Path temp = Files.createTempFile(parent, "snapshot", ".tmp");
+        long[] counts = new long[4]; // entries, files, bytes, failures
+        String[] firstFailure = {null};
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+                byte[] rootBytes = base.toString().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeByte(hashes ? HASHES : 0);
+                out.writeInt(rootBytes.length);
+                out.write(rootBytes);
+
+                byte[][] previous = {new byte[0]};
+                String separator = base.getFileSystem().getSeparator();
+                try {
+                    new TreeWalker(Integer.MAX_VALUE, true).stopWhen(stop).walkOrdered(base, new TreeWalker.Visitor() {
+                        @Override
+                        public void visit(Path path, BasicFileAttributes attrs, int depth) {
+                            if (depth == 0 || path.equals(temp) || path.equals(target)) {
+                                return;
+                            }
+                            byte[] key = base.relativize(path).toString().replace(separator, "/").getBytes(StandardCharsets.UTF_8);
+                            byte type = attrs.isSymbolicLink() ? SYMLINK : attrs.isDirectory() ? DIRECTORY
+                                    : attrs.isRegularFile() ? FILE : OTHER;
+                            byte[] hash = null;
+                            if (hashes && type == FILE) {
+                                try {
+                                    hash = DuplicateFinder.contentHash(path);
+                                } catch (IOException e) {
+                                    failed(path, e); // the entry is still recorded, without a hash
+                                }
+                            }
+                            try {
+                                writeEntry(out, previous[0], key, hash == null ? type : (byte) (type | HASHED),
+                                        attrs.size(), attrs.lastModifiedTime().toMillis(), hash);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                            previous[0] = key;
+                            counts[0]++;
+                            if (type == FILE) {
+                                counts[1]++;
+                                counts[2] += attrs.size();
+                            }
+                        }
+
+                        @Override
+                        public void failed(Path path, IOException e) {
+                            counts[3]++;
+                            if (firstFailure[0] == null) {
+                                firstFailure[0] = path + ": " + e.getMessage();
+                            }
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                out.writeByte(0);
+                Varint.writeLong(out, counts[0]);
+            }
+            if (stop.getAsBoolean()) {
+                return null; // an incomplete manifest would diff as a mass removal
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return new Saved(counts[0], counts[1], counts[2], counts[3], firstFailure[0]);
+    }
+
+    private static void writeEntry(DataOutputStream out, byte[] previous, byte[] key, byte type, long size,
+                                   long modified, byte[] hash) throws IOException {
+        int shared = Arrays.mismatch(previous, key);
+        shared = shared < 0 ? previous.length : shared;
+        out.writeByte(1);
+        Varint.writeLong(out, shared);
+        Varint.writeLong(out, key.length - shared);
+        out.write(key, shared, key.length - shared);
+        out.writeByte(type);
+        Varint.writeLong(out, size);
+        Varint.writeLong(out, modified);
+        if (hash != null) {
+            out.write(hash);
+        }
+    }
+
+    /** True when the manifest in file stores file hashes. */
+    public static boolean hasHashes(Path file) throws IOException {
+        try (Reader reader = new Reader(file)) {
+            return reader.hashes;
+        }
+    }
+
+    /** Streams the differences from the manifest in older to the one in newer to visitor. */
+    static Diff diff(Path older, Path newer, DiffVisitor visitor) throws IOException {
+        Diff diff = new Diff();
+        try (Reader before = new Reader(older); Reader after = new Reader(newer)) {
+            boolean hasBefore = before.next();
+            boolean hasAfter = after.next();
+            while (hasBefore || hasAfter) {
+                int order = !hasBefore ? 1 : !hasAfter ? -1 : compareKeys(before.entry, after.entry);
+                if (order < 0) {
+                    visitor.removed(before.entry);
+                    diff.removed++;
+                    hasBefore = before.next();
+                } else if (order > 0) {
+                    visitor.added(after.entry);
+                    diff.added++;
+                    hasAfter = after.next();
+                } else {
+                    String what = changes(before.entry, after.entry);
+                    if (what == null) {
+                        diff.unchanged++;
+                    } else {
+                        visitor.changed(before.entry, after.entry, what);
+                        diff.changed++;
+                    }
+                    hasBefore = before.next();
+                    hasAfter = after.next();
+                }
+            }
+        }
+        return diff;
+    }
+
+    // Relative paths byte by byte with '/' below every other byte, which is the order of a sorted walk
+    static int compareKeys(Entry a, Entry b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int x = a.key[i] == '/' ? -1 : a.key[i] & 0xFF;
+            int y = b.key[i] == '/' ? -1 : b.key[i] & 0xFF;
+            if (x != y) {
+                return x - y;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    // Null when the entry is the same; a directory's size and mtime only follow what happens inside it
+    private static String changes(Entry before, Entry after) {
+        if (before.type != after.type) {
+            return "type";
+        }
+        if (before.isDirectory()) {
+            return null;
+        }
+        StringBuilder what = new StringBuilder();
+        if (before.size != after.size) {
+            what.append("size ").append(before.size).append(" -> ").append(after.size);
+        } else if (before.hashed && after.hashed && !Arrays.equals(before.hash, after.hash)) {
+            what.append("content");
+        }
+        if (before.modified != after.modified) {
+            what.append(what.length() > 0 ? ", " : "").append("mtime");
+        }
+        return what.length() == 0 ? null : what.toString();
+    }
+
+    /** Decodes a manifest one entry at a time. */
+    static final class Reader implements Closeable {
+        final Path file;
+        final boolean hashes;
+        final Entry entry = new Entry();
+        private final DataInputStream in;
+        private long read;
+
+        Reader(Path file) throws IOException {
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Not a snapshot: " + file);
+                }
+                hashes = (in.readByte() & HASHES) != 0;
+                in.skipNBytes(in.readInt()); // the root, which a diff does not need
+            } catch (IOException e) {
+                in.close();
+                throw e instanceof EOFException ? new IOException("Not a snapshot: " + file) : e;
+            }
+        }
+
+        /** Moves to the next entry; false at the end of the manifest. */
+        boolean next() throws IOException {
+            try {
+                if (in.readByte() == 0) {
+                    long count = Varint.readLong(in);
+                    if (count != read) {
+                        throw new IOException("Corrupt snapshot: " + file);
+                    }
+                    return false;
+                }
+                int shared = (int) Varint.readLong(in);
+                int suffix = (int) Varint.readLong(in);
+                if (shared > entry.length) {
+                    throw new IOException("Corrupt snapshot: " + file);
+                }
+                if (entry.key.length < shared + suffix) {
+                    entry.key = Arrays.copyOf(entry.key, Math.max(shared + suffix, entry.key.length * 2));
+                }
+                in.readFully(entry.key, shared, suffix);
+                entry.length = shared + suffix;
+                byte type = in.readByte();
+                entry.hashed = (type & HASHED) != 0;
+                entry.type = (byte) (type & ~HASHED);
+                entry.size = Varint.readLong(in);
+                entry.modified = Varint.readLong(in);
+                if (entry.hashed) {
+                    in.readFully(entry.hash);
+                }
+                read++;
+                return true;
+            } catch (EOFException e) {
+                throw new IOException("Truncated snapshot: " + file);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package org.os;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Walks a directory tree reading the attributes of every entry exactly once.
+ * Directory listings are fetched on a shared pool so slow (network) filesystems are read in parallel.
+ * Symbolic links are reported but never followed.
+ */
+public class TreeWalker {
+
+    public interface Visitor {
+        // Called once per entry; depth is 0 for the root
+        void visit(Path path, BasicFileAttributes attrs, int depth);
+
+        // Called when a directory cannot be listed; the walk carries on with its siblings
+        default void failed(Path dir, IOException e) {
+        }
+    }
+
+    // Listing directories is I/O bound, so use more threads than cores
+    static final ForkJoinPool POOL = new ForkJoinPool(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+    // Subdirectory listings fetched ahead of an ordered walk, per directory; keeps very wide trees from being read into memory at once
+    static final int PREFETCH_AHEAD = 64;
+
+    private final int maxDepth;
+    private final boolean sorted;
+    private BooleanSupplier stop = () -> false;
+
+    public TreeWalker() {
+        this(Integer.MAX_VALUE);
+    }
+
+    public TreeWalker(int maxDepth) {
+        this(maxDepth, false);
+    }
+
+    /** With sorted set, an ordered walk visits the entries of each directory by the UTF-8 bytes of their names. */
+    public TreeWalker(int maxDepth, boolean sorted) {
+        this.maxDepth = maxDepth;
+        this.sorted = sorted;
+    }
+
+    /** Ends the walk early once stop returns true; it is checked before each directory and each visit. */
+    public TreeWalker stopWhen(BooleanSupplier stop) {
+        this.stop = stop;
+        return this;
+    }
+
+    /**
+     * Visits entries in the same pre-order as {@link Files#walk}, on the calling thread.
+     * When a directory is reached, the listings of its first subdirectories are requested in the background,
+     * and one more each time the walk descends into one, so by the time it gets there they are usually ready.
+     */
+    public void walkOrdered(Path root, Visitor visitor) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        visitor.visit(root, attrs, 0);
+        if (attrs.isDirectory() && maxDepth > 0) {
+            emitOrdered(root, 1, prefetch(root), visitor);
+        }
+    }
+
+    private void emitOrdered(Path dir, int depth, CompletableFuture<List<Entry>> listing, Visitor visitor) {
+        List<Entry> entries;
+        try {
+            entries = listing.join();
+        } catch (RuntimeException e) {
+            visitor.failed(dir, asIOException(e));
+            return;
+        }
+
+        // Start fetching the next level before visiting this one
+        List<Integer> subdirectories = new ArrayList<>();
+        if (depth < maxDepth) {
+            for (int i = 0; i < entries.size(); i++) {
+                if (entries.get(i).attrs.isDirectory()) {
+                    subdirectories.add(i);
+                }
+            }
+        }
+        List<CompletableFuture<List<Entry>>> children = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            children.add(null);
+        }
+        int requested = 0;
+        for (; requested < subdirectories.size() && requested < PREFETCH_AHEAD; requested++) {
+            int index = subdirectories.get(requested);
+            children.set(index, prefetch(entries.get(index).path));
+        }
+
+        for (int i = 0; i < entries.size(); i++) {
+            if (stop.getAsBoolean()) {
+                return;
+            }
+            Entry entry = entries.get(i);
+            visitor.visit(entry.path, entry.attrs, depth);
+            CompletableFuture<List<Entry>> child = children.get(i);
+            if (child != null) {
+                children.set(i, null);
+                if (requested < subdirectories.size()) {
+                    int index = subdirectories.get(requested++);
+                    children.set(index, prefetch(entries.get(index).path));
+                }
+                emitOrdered(entry.path, depth + 1, child, visitor);
+            }
+        }
+    }
+
+    private CompletableFuture<List<Entry>> prefetch(Path dir) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                List<Entry> entries = list(dir);
+                if (sorted) {
+                    entries.sort(BY_NAME);
+                }
+                return entries;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, POOL);
+    }
+
+    private static final Comparator<Entry> BY_NAME = (a, b) -> Arrays.compareUnsigned(a.name(), b.name());
+
+    /**
+     * Visits every entry with no ordering guarantee, forking one task per directory on the shared pool.
+     * The visitor is called concurrently and must be thread-safe.
+     */
+    public void walkParallel(Path root, Visitor visitor) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        visitor.visit(root, attrs, 0);
+        if (attrs.isDirectory() && maxDepth > 0) {
+            POOL.invoke(new DirectoryTask(root, 1, visitor));
+        }
+    }
+
+    private final class DirectoryTask extends RecursiveAction {
+        private final Path dir;
+        private final int depth;
+        private final Visitor visitor;
+
+        DirectoryTask(Path dir, int depth, Visitor visitor) {
+            this.dir = dir;
+            this.depth = depth;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected void compute() {
+            if (stop.getAsBoolean()) {
+                return;
+            }
+            List<Entry> entries;
+            try {
+                entries = list(dir);
+            } catch (IOException e) {
+                visitor.failed(dir, e);
+                return;
+            }
+            List<DirectoryTask> subtasks = new ArrayList<>();
+            for (Entry entry : entries) {
+                if (stop.getAsBoolean()) {
+                    return;
+                }
+                visitor.visit(entry.path, entry.attrs, depth);
+                if (entry.attrs.isDirectory() && depth < maxDepth) {
+                    subtasks.add(new DirectoryTask(entry.path, depth + 1, visitor));
+                }
+            }
+            invokeAll(subtasks);
+        }
+    }
+
+    // Lists a directory, reading each entry's attributes once without following links
+    static List<Entry> list(Path dir) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                try {
+                    entries.add(new Entry(path, Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS)));
+                } catch (IOException e) {
+                    // The entry vanished between listing and stat; skip it
+                }
+            }
+        } catch (DirectoryIteratorException e) {
+            // Opening worked but reading did not, e.g. /proc/<pid>/map_files without the right capability
+            throw e.getCause();
+        }
+        return entries;
+    }
+
+    private static IOException asIOException(RuntimeException e) {
+        Throwable cause = e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof UncheckedIOException) {
+            cause = cause.getCause();
+        }
+        return cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+
+    static final class Entry {
+        final Path path;
+        final BasicFileAttributes attrs;
+        // UTF-8 file name, computed once when a sorted walk first compares it
+        private byte[] name;
+
+        Entry(Path path, BasicFileAttributes attrs) {
+            this.path = path;
+            this.attrs = attrs;
+        }
+
+        byte[] name() {
+            if (name == null) {
+                name = path.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+            }
+            return name;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package org.os;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Variable-length longs as {@link FileIndex} and {@link Snapshot} store them: seven bits a byte, lowest bits
+ * first, with the high bit set on every byte but the last.
+ */
+final class Varint {
+
+    private Varint() {
+    }
+
+    static void writeLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /** Reads at cursor[0] in data, a mapped file, and moves the cursor past the value. */
+    static long readLong(ByteBuffer data, int[] cursor) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = data.get(cursor[0]++);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.os;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+
+/**
+ * Runs the tasks of one rm -p, cp or mv on a bounded fork-join pool of their own, optionally with a progress
+ * line once a second. The pool and the progress thread are shut down when the run ends, however it ends.
+ */
+final class Workers {
+
+    // Deleting, copying and moving are I/O bound; more workers than this mostly adds contention on the filesystem
+    static final int MAX_WORKERS = 16;
+
+    private Workers() {
+    }
+
+    /** Workers for a run over a tree: twice the processors, at least 2 and at most {@link #MAX_WORKERS}. */
+    static int count() {
+        return Math.min(MAX_WORKERS, Math.max(2, Runtime.getRuntime().availableProcessors() * 2));
+    }
+
+    /** Runs tasks on at most {@code workers} threads and returns once all of them have ended. */
+    static void run(int workers, List<? extends ForkJoinTask<?>> tasks) {
+        run(workers, tasks, null, null, null);
+    }
+
+    /**
+     * Runs tasks on at most {@code workers} threads, passing {@code report} of the time elapsed so far to
+     * progress once a second from a thread called name-progress.
+     *
+     * @return elapsed time in nanoseconds
+     */
+    static long run(int workers, List<? extends ForkJoinTask<?>> tasks, String name, LongFunction<String> report,
+                    Consumer<String> progress) {
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        ScheduledExecutorService reporter = null;
+        try {
+            if (report != null) {
+                reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, name + "-progress");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                reporter.scheduleAtFixedRate(() -> progress.accept(report.apply(System.nanoTime() - start)),
+                        1, 1, TimeUnit.SECONDS);
+            }
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } finally {
+            if (reporter != null) {
+                reporter.shutdownNow();
+            }
+            pool.shutdown();
+        }
+        return System.nanoTime() - start;
+    }
+}
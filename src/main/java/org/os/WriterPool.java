@@ -0,0 +1,308 @@
+package org.os;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session pool of open redirect targets. {@code echo ... >> file} only queues its bytes; a background thread
+ * keeps the files open and writes whatever has queued up for a file in one gathering write (group commit),
+ * waiting at most {@link #FLUSH_INTERVAL_MILLIS} for more to arrive.
+ * Anything that reads files first calls {@link #drain()}, so a command never sees a stale target.
+ * Write errors surface on the next drain or {@link #failures()}, because the command that queued the bytes has
+ * already returned; for the same reason the bytes are counted in the session's metrics only once written.
+ */
+public class WriterPool implements AutoCloseable {
+
+    static final long FLUSH_INTERVAL_MILLIS = 50;
+    // Write a batch right away once this much has queued up
+    static final int MAX_BATCH_BYTES = 1 << 20;
+    // Appends waiting for the writer; callers block when it falls this far behind
+    static final int QUEUE_CAPACITY = 8192;
+    // Least recently written targets are closed beyond this
+    static final int MAX_OPEN_FILES = 64;
+
+    private static final class Write {
+        final Path path;
+        final byte[] data;
+        final boolean truncate;
+
+        Write(Path path, byte[] data, boolean truncate) {
+            this.path = path;
+            this.data = data;
+            this.truncate = truncate;
+        }
+    }
+
+    // Markers that carry no data: write now, additionally force to disk, or stop the thread
+    private static final Write FLUSH = new Write(null, null, false);
+    private static final Write SYNC = new Write(null, null, false);
+    private static final Write STOP = new Write(null, null, false);
+
+    private final BlockingQueue<Write> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    // Only touched by the writer thread
+    private final LinkedHashMap<Path, FileChannel> open = new LinkedHashMap<>(16, 0.75f, true);
+    private final Metrics metrics;
+    private final Thread thread;
+    // Held while numbering and queueing a write, so sequence numbers follow queue order
+    private final Object submitLock = new Object();
+    private volatile boolean closed;
+
+    // Guarded by this
+    private long submitted;
+    private long completed;
+    private final List<String> errors = new ArrayList<>();
+
+    /** Counts what reaches the files under "redirect" in metrics. */
+    public WriterPool(Metrics metrics) {
+        this.metrics = metrics;
+        thread = new Thread(this::run, "redirect-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues bytes for a file; truncate empties the file first, as {@code >} does.
+     * Fails right away only if the file's directory does not exist.
+     */
+    public void write(Path file, byte[] data, boolean truncate) throws IOException {
+        if (closed) {
+            throw new IOException("redirect writer is closed");
+        }
+        Path key = file.toAbsolutePath().normalize();
+        if (!Files.isDirectory(key.getParent())) {
+            throw new NoSuchFileException(key.toString());
+        }
+        submit(new Write(key, data, truncate));
+    }
+
+    /**
+     * Waits until everything queued so far has been written to the files.
+     *
+     * @return messages for writes that failed since the last drain
+     */
+    public List<String> drain() {
+        return await(FLUSH);
+    }
+
+    /** Messages for writes that failed since the last drain, without waiting for what is still queued. */
+    public synchronized List<String> failures() {
+        return takeErrors();
+    }
+
+    /** Like {@link #drain()}, and also forces every open target to the storage device. */
+    public List<String> sync() {
+        return await(SYNC);
+    }
+
+    /** Writes and syncs everything that is queued, then closes every target. */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        List<String> failed = await(SYNC);
+        failed.forEach(System.err::println);
+        submit(STOP);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<String> await(Write marker) {
+        synchronized (this) {
+            if (marker == FLUSH && submitted == completed) {
+                return takeErrors();
+            }
+        }
+        long target = submit(marker);
+        synchronized (this) {
+            boolean interrupted = false;
+            while (completed < target && thread.isAlive()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return takeErrors();
+        }
+    }
+
+    // Caller holds the lock
+    private List<String> takeErrors() {
+        List<String> taken = new ArrayList<>(errors);
+        errors.clear();
+        return taken;
+    }
+
+    private long submit(Write write) {
+        long sequence;
+        boolean interrupted = false;
+        synchronized (submitLock) {
+            synchronized (this) {
+                sequence = ++submitted;
+            }
+            while (true) {
+                try {
+                    queue.put(write);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return sequence;
+    }
+
+    private void run() {
+        List<Write> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                // Let more appends pile up unless someone is waiting for them or the batch is already large
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS);
+                long bytes = size(batch.get(0));
+                while (batch.get(batch.size() - 1).path != null && bytes < MAX_BATCH_BYTES) {
+                    Write next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    bytes += size(next);
+                }
+            } catch (InterruptedException e) {
+                // Nobody interrupts this thread; keep going so queued data is not lost
+            }
+            queue.drainTo(batch);
+
+            boolean stop = commit(batch);
+            synchronized (this) {
+                completed += batch.size();
+                notifyAll();
+            }
+            batch.clear();
+            if (stop) {
+                closeAll();
+                return;
+            }
+        }
+    }
+
+    private static long size(Write write) {
+        return write.data == null ? 0 : write.data.length;
+    }
+
+    /** Writes one batch, returning true if it contained the stop marker. */
+    private boolean commit(List<Write> batch) {
+        // Gather each file's appends, in order, so the file gets one write call
+        Map<Path, List<ByteBuffer>> pending = new LinkedHashMap<>();
+        boolean sync = false;
+        boolean stop = false;
+        for (Write write : batch) {
+            if (write == SYNC) {
+                sync = true;
+            } else if (write == STOP) {
+                stop = true;
+            } else if (write.path != null) {
+                if (write.truncate) {
+                    // Earlier appends in this batch would be erased anyway
+                    pending.remove(write.path);
+                    truncate(write.path);
+                }
+                pending.computeIfAbsent(write.path, p -> new ArrayList<>()).add(ByteBuffer.wrap(write.data));
+            }
+        }
+        for (Map.Entry<Path, List<ByteBuffer>> entry : pending.entrySet()) {
+            ByteBuffer[] buffers = entry.getValue().toArray(new ByteBuffer[0]);
+            try {
+                FileChannel channel = channel(entry.getKey());
+                long written = 0;
+                while (buffers[buffers.length - 1].hasRemaining()) {
+                    written += channel.write(buffers);
+                }
+                // One file touched per redirect, as when redirects are written synchronously
+                metrics.written("redirect", written, buffers.length);
+            } catch (IOException e) {
+                fail(entry.getKey(), e);
+            }
+        }
+        if (sync || stop) {
+            for (Map.Entry<Path, FileChannel> entry : open.entrySet()) {
+                try {
+                    entry.getValue().force(false);
+                } catch (IOException e) {
+                    fail(entry.getKey(), e);
+                }
+            }
+        }
+        return stop;
+    }
+
+    private void truncate(Path path) {
+        try {
+            channel(path).truncate(0);
+        } catch (IOException e) {
+            fail(path, e);
+        }
+    }
+
+    private FileChannel channel(Path path) throws IOException {
+        FileChannel channel = open.get(path);
+        if (channel == null || !channel.isOpen()) {
+            // APPEND keeps writes at the end even if another command wrote to the file in between
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            open.put(path, channel);
+            evict();
+        }
+        return channel;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Path, FileChannel>> eldest = open.entrySet().iterator();
+        while (open.size() > MAX_OPEN_FILES && eldest.hasNext()) {
+            Map.Entry<Path, FileChannel> entry = eldest.next();
+            eldest.remove();
+            try {
+                entry.getValue().close();
+            } catch (IOException e) {
+                fail(entry.getKey(), e);
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (Map.Entry<Path, FileChannel> entry : open.entrySet()) {
+            try {
+                entry.getValue().close();
+            } catch (IOException e) {
+                System.err.println("Error writing to file " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+        open.clear();
+    }
+
+    private synchronized void fail(Path path, IOException e) {
+        errors.add("Error writing to file " + path + ": " + e.getMessage());
+    }
+}